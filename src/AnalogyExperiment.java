@@ -17,7 +17,10 @@ public class AnalogyExperiment {
         private String wordNetPath = null;
         private boolean caseSensitive = false;
         private int filterOn = 1000000000;
+        private WordFilter wordFilter = WordFilter.ALL;
         private String vocabFile = null;
+        private boolean mapEmbeddings = false;
+        private QuantizedVectorStore.Encoding quantize = null;
         private Embeddings emb = null;
         private List<Analogy> analogies = null;
         private Map<String, List<Analogy>> analogiesByCategory = null;
@@ -55,23 +58,63 @@ public class AnalogyExperiment {
             return this;
         }
 
+        /**
+         * Only load words that pass a filter (in addition to the filterOn cutoff)
+         */
+        public Builder wordFilter(WordFilter wordFilter) {
+            this.wordFilter = wordFilter;
+            return this;
+        }
+
         public Builder useGlove(String vocabFile) {
             this.vocabFile = vocabFile;
             return this;
         }
 
+        /**
+         * Memory-map a word2vec binary file rather than reading it onto the heap
+         */
+        public Builder mapEmbeddings(boolean mapEmbeddings) {
+            this.mapEmbeddings = mapEmbeddings;
+            return this;
+        }
+
+        /**
+         * Run full-vocabulary scans on quantized vectors (ranks are unaffected)
+         * @param quantize the compact encoding to use, or null to scan full-precision vectors
+         */
+        public Builder quantize(@Nullable QuantizedVectorStore.Encoding quantize) {
+            this.quantize = quantize;
+            return this;
+        }
+
         public AnalogyExperiment createExperiment() throws IOException {
 
             if(emb == null) {
-                if(vocabFile == null) {
-                    emb = Word2vecReader.readBinFile(embeddingsFile);
+                // words are filtered as they are read, rather than after the whole file has been loaded
+                WordFilter filter = wordFilter;
+                if(filterOn < 1000000000) {
+                    filter = filter.and(WordFilter.topN(filterOn));
+                }
+                if(vocabFile == null && EmbeddingsSnapshot.isSnapshot(embeddingsFile)) {
+                    emb = EmbeddingsSnapshot.read(embeddingsFile);
+                    if(filter != WordFilter.ALL) {
+                        emb.filter(filter);
+                    }
+                }
+                else if(vocabFile == null && TextVectorReader.isTextFile(embeddingsFile)) {
+                    emb = TextVectorReader.readTextFile(embeddingsFile, filter);
+                }
+                else if(vocabFile == null) {
+                    emb = mapEmbeddings ? Word2vecReader.mapBinFile(embeddingsFile, filter)
+                            : Word2vecReader.readBinFileParallel(embeddingsFile, filter, true);
                 }
                 else {
-                    emb = GloVeReader.readBinFile(embeddingsFile, vocabFile);
+                    emb = GloVeReader.readBinFile(embeddingsFile, vocabFile, filter, null);
                 }
                 emb.normalizeAll();
-                if(filterOn < emb.size()) {
-                    emb.filterOn(new HashSet<>(emb.getLexicon().subList(0, filterOn)));
+                if(quantize != null) {
+                    emb.quantize(quantize);
                 }
             }
 
@@ -92,8 +135,10 @@ public class AnalogyExperiment {
                             analogiesByCategory.put("first category", categoryActiveList);
                         }
                         if (!this.caseSensitive) line = line.toLowerCase();
-                        String[] fields = line.split(" ");
-                        if(emb.contains(fields[0]) && emb.contains(fields[1]) && emb.contains(fields[2]) && emb.contains(fields[3])) {
+                        String[] fields = line.trim().split(" ");
+                        // fields contain no whitespace, so they can be looked up as-is without building Phrases
+                        if(fields.length >= 4 && emb.indexOf(fields[0]) >= 0 && emb.indexOf(fields[1]) >= 0
+                                && emb.indexOf(fields[2]) >= 0 && emb.indexOf(fields[3]) >= 0) {
                             Analogy thisAnalogy = new Analogy(fields);
                             analogies.add(thisAnalogy);
                             if (!emb.contains(thisAnalogy.w1) || !emb.contains(thisAnalogy.w2) || !emb.contains(thisAnalogy.w3) || !emb.contains(thisAnalogy.w4)) {
@@ -139,6 +184,9 @@ public class AnalogyExperiment {
     private Map<Analogy, Integer> addRanks;
     private Map<Analogy, Integer> mulRanks;
 
+    // created on first use, since it precomputes a shifted copy of the whole vocabulary; recreated if emb changes
+    private BatchScorer batchScorer;
+
     public Embeddings getEmbeddings() {
         return emb;
     }
@@ -183,8 +231,20 @@ public class AnalogyExperiment {
     }
 
     /**
+     * Rank the fourth word of every analogy (or every analogy in one category) among the whole vocabulary
+     * @param category the category to score, or null to score all analogies
      */
     public void scoreRanks(@Nullable String category) {
+        scoreRanks(category, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Rank the fourth word of every analogy, but only as far as a maximum rank (enough for hits@k up to that rank)
+     * Scans stop early for analogies whose rank is past the maximum, so hard analogies cost a fraction of a full pass
+     * @param category the category to score, or null to score all analogies
+     * @param maxRank the highest rank that needs to be known exactly; higher ranks are reported as maxRank + 1
+     */
+    public void scoreRanks(@Nullable String category, int maxRank) {
         baselineRanks = new HashMap<>();
         addRanks = new HashMap<>();
         mulRanks = new HashMap<>();
@@ -194,58 +254,77 @@ public class AnalogyExperiment {
         } else {
             testList = analogiesByCategory.get(category);
         }
-        int counter = 0;
-        for (Analogy analogy : testList) {
-            WordEmbedding w1 = emb.get(analogy.w1);
-            WordEmbedding w2 = emb.get(analogy.w2);
-            WordEmbedding w3 = emb.get(analogy.w3);
-            WordEmbedding w4 = emb.get(analogy.w4);
-            WordEmbedding w1p = new WordEmbedding(w1);
-            WordEmbedding w2p = new WordEmbedding(w2);
-            WordEmbedding w3p = new WordEmbedding(w3);
-            WordEmbedding w4p = new WordEmbedding(w4);
-            w1p.add(1);
-            w2p.add(1);
-            w3p.add(1);
-            w4p.add(1);
-            int addRank = 1;
-            int mulRank = 1;
-            int baselineRank = 1;
-            if (emb.contains(analogy.w1) && emb.contains(analogy.w2) && emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
-                double addScore;
-                double baselineScore;
-                double mulScore;
-
-                WordEmbedding calculated = analogyHypothesisEmbedding(analogy);
-                addScore = calculated.dot(emb.get(analogy.w4));
-                baselineScore = w3.dot(w4);
-
-                mulScore = scoreLevyGoldberg(w1p, w2p, w3p, w4p);
-                Iterator<WordEmbedding> iter = emb.embeddingIterator();
-                while (iter.hasNext()) {
-                    WordEmbedding hyp = iter.next();
-                    if(hyp == w1 || hyp == w2 || hyp == w3) continue;
-                    double addCompScore = calculated.dot(hyp);
-                    if (addCompScore > addScore) addRank += 1;
-                    double baselineCompScore = w3.dot(hyp);
-                    if (baselineCompScore > baselineScore) baselineRank += 1;
-                    hyp = new WordEmbedding(hyp);
-                    hyp.add(1);
-                    double mulCompScore = scoreLevyGoldberg(w1p, w2p, w3p, hyp);
-                    if (mulCompScore > mulScore) mulRank += 1;
+        int[][] indices = new int[testList.size()][];
+        for(int a=0; a<testList.size(); a++) {
+            Analogy analogy = testList.get(a);
+            indices[a] = new int[] {emb.indexOf(analogy.w1), emb.indexOf(analogy.w2),
+                    emb.indexOf(analogy.w3), emb.indexOf(analogy.w4)};
+        }
+        if(batchScorer == null || !batchScorer.isCurrent()) {
+            batchScorer = new BatchScorer(emb);
+        }
+        int[][] ranks = batchScorer.scoreRanks(indices, maxRank);
+        for(int a=0; a<testList.size(); a++) {
+            Analogy analogy = testList.get(a);
+            baselineRanks.put(analogy, ranks[BatchScorer.BASELINE][a]);
+            addRanks.put(analogy, ranks[BatchScorer.ADD][a]);
+            mulRanks.put(analogy, ranks[BatchScorer.MUL][a]);
+        }
+    }
+
+    /**
+     * Fraction of each category's analogies whose fourth word ranked k or better under each method
+     * Uses the ranks from the last call to scoreRanks, whose maxRank must be at least the largest k
+     * @param ks the cutoffs (e.g. 1, 10, 100)
+     * @return by category, the fraction of hits for each method (baseline, add, mul) and each k
+     */
+    public Map<String, double[][]> hitsAtK(int... ks) {
+        Map<String, double[][]> hits = new TreeMap<>();
+        for(Map.Entry<String, List<Analogy>> entry : analogiesByCategory.entrySet()) {
+            int[][] counts = new int[3][ks.length];
+            int n = 0;
+            for(Analogy analogy : entry.getValue()) {
+                if(!addRanks.containsKey(analogy)) continue;
+                n++;
+                int[] ranks = {baselineRanks.get(analogy), addRanks.get(analogy), mulRanks.get(analogy)};
+                for(int method=0; method<3; method++) {
+                    for(int k=0; k<ks.length; k++) {
+                        if(ranks[method] <= ks[k]) counts[method][k]++;
+                    }
                 }
-            } else {
-                baselineRank = emb.size();
-                addRank = emb.size();
-                mulRank = emb.size();
             }
-            baselineRanks.put(analogy, baselineRank);
-            addRanks.put(analogy, addRank);
-            mulRanks.put(analogy, mulRank);
-            counter++;
-            if (counter % 10 == 0) {
-                System.out.println(counter + " analogy ranks calculated");
+            if(n == 0) continue;
+            double[][] fractions = new double[3][ks.length];
+            for(int method=0; method<3; method++) {
+                for(int k=0; k<ks.length; k++) {
+                    fractions[method][k] = (double) counts[method][k] / n;
+                }
+            }
+            hits.put(entry.getKey(), fractions);
+        }
+        return hits;
+    }
+
+    /**
+     * Print a table of hits@k for every category (see hitsAtK)
+     * @param ks the cutoffs (e.g. 1, 10, 100)
+     */
+    public void printHitsAtK(int... ks) {
+        StringBuilder header = new StringBuilder("category");
+        for(String method : new String[] {"base", "add", "mul"}) {
+            for(int k : ks) {
+                header.append("\t").append(method).append("@").append(k);
+            }
+        }
+        System.out.println(header);
+        for(Map.Entry<String, double[][]> entry : hitsAtK(ks).entrySet()) {
+            StringBuilder row = new StringBuilder(entry.getKey());
+            for(double[] methodHits : entry.getValue()) {
+                for(double hit : methodHits) {
+                    row.append(String.format("\t%.4f", hit));
+                }
             }
+            System.out.println(row);
         }
     }
 
@@ -274,74 +353,102 @@ public class AnalogyExperiment {
     }
 
     public Map<Analogy, Double> baselineSimilarity() {
-        Map<Analogy, Double> analogyBaselineScores = new HashMap<>();
-        for(Analogy analogy : analogies) {
-            if(emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
-                analogyBaselineScores.put(analogy, emb.get(analogy.w3).cosSim(emb.get(analogy.w4)));
-            } else {
-                analogyBaselineScores.put(analogy, 0.);
+        double[] scores = new double[analogies.size()];
+        Threading.parallelFor(analogies.size(), (begin, end) -> {
+            for(int a = begin; a < end; a++) {
+                Analogy analogy = analogies.get(a);
+                if(emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
+                    scores[a] = emb.get(analogy.w3).cosSim(emb.get(analogy.w4));
+                }
             }
-        }
-        return analogyBaselineScores;
+        });
+        return toMap(scores);
     }
 
     public Map<Analogy, Double> additiveSimilarity() {
-        Map<Analogy, Double> sumSimilarity = new HashMap<>();
-        for(Analogy analogy : analogies) {
-            if(emb.contains(analogy.w1) && emb.contains(analogy.w2) && emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
-            sumSimilarity.put(analogy, analogyHypothesisEmbedding(analogy).cosSim(emb.get(analogy.w4)));
-            } else {
-                sumSimilarity.put(analogy, 0.);
+        double[] scores = new double[analogies.size()];
+        Threading.parallelFor(analogies.size(), (begin, end) -> {
+            for(int a = begin; a < end; a++) {
+                Analogy analogy = analogies.get(a);
+                if(emb.contains(analogy.w1) && emb.contains(analogy.w2) && emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
+                    scores[a] = analogyHypothesisEmbedding(analogy).cosSim(emb.get(analogy.w4));
+                }
             }
+        });
+        return toMap(scores);
+    }
+
+    /**
+     * Pair every analogy with its score
+     * @param scores scores by position in the analogy list
+     */
+    private Map<Analogy, Double> toMap(double[] scores) {
+        Map<Analogy, Double> map = new HashMap<>();
+        for(int a=0; a<scores.length; a++) {
+            map.put(analogies.get(a), scores[a]);
         }
-        return sumSimilarity;
+        return map;
     }
 
     public Map<String, Double> similaritiesToCategoryMean() {
-        Map<String, WordEmbedding> meanVectors = new HashMap<>();
-        Map<String, Double> sims = new HashMap<>();
+        List<String> categories = new ArrayList<>(analogiesByCategory.keySet());
+        List<Map<String, Double>> similaritiesByCategory = new ArrayList<>(Collections.nCopies(categories.size(), null));
+        // categories are independent, so they are spread across the worker threads
+        Threading.parallelFor(categories.size(), (begin, end) -> {
+            for(int c = begin; c < end; c++) {
+                similaritiesByCategory.set(c, similaritiesToCategoryMean(analogiesByCategory.get(categories.get(c))));
+            }
+        });
 
-        for(String category : analogiesByCategory.keySet()) {
-            List<Analogy> analogies = analogiesByCategory.get(category);
-            Map<String, Double> similarities = new HashMap<>();
+        Map<String, Double> sims = new HashMap<>();
+        for(int c=0; c<categories.size(); c++) {
+            Map<String, Double> similarities = similaritiesByCategory.get(c);
+            System.out.println(similarities.size() + "\t" + categories.get(c));
+            sims.putAll(similarities);
+        }
+        return sims;
+    }
 
-            WordEmbedding meanVector = new WordEmbedding(emb.dimensionality());
-            for (Analogy analogy : analogies) {
-                String relation1 = analogy.w1 + ":" + analogy.w2;
-                String relation2 = analogy.w3 + ":" + analogy.w4;
-                if (emb.contains(analogy.w1) && emb.contains(analogy.w2)) {
-                    if(!similarities.containsKey(relation1)) {
-                        meanVector.add(emb.get(analogy.w1).difference(emb.get(analogy.w2)));
-                        similarities.put(relation1, -1.);
-                    }
-                }
-                if (emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
-                    if (!similarities.containsKey(relation2)) {
-                        meanVector.add(emb.get(analogy.w3).difference(emb.get(analogy.w4)));
-                        similarities.put(relation2, -1.);
-                    }
+    /**
+     * Similarity of every word pair in a category's analogies to the category's mean difference vector
+     * @param analogies the analogies in one category
+     * @return similarities by pair (represented as strings w/ ':' in middle)
+     */
+    private Map<String, Double> similaritiesToCategoryMean(List<Analogy> analogies) {
+        Map<String, Double> similarities = new HashMap<>();
+
+        WordEmbedding meanVector = new WordEmbedding(emb.dimensionality());
+        for (Analogy analogy : analogies) {
+            String relation1 = analogy.w1 + ":" + analogy.w2;
+            String relation2 = analogy.w3 + ":" + analogy.w4;
+            if (emb.contains(analogy.w1) && emb.contains(analogy.w2)) {
+                if(!similarities.containsKey(relation1)) {
+                    meanVector.add(emb.get(analogy.w1).difference(emb.get(analogy.w2)));
+                    similarities.put(relation1, -1.);
                 }
             }
-            meanVector.scalarMultiply(1. / similarities.size());
-            meanVectors.put(category, meanVector);
-
-            for (Analogy analogy : analogies) {
-                String relation1 = analogy.w1 + ":" + analogy.w2;
-                String relation2 = analogy.w3 + ":" + analogy.w4;
-                if(similarities.get(relation1) == -1.) {
-                    double sim = emb.get(analogy.w1).difference(emb.get(analogy.w2)).cosSim(meanVector);
-                    similarities.put(relation1, sim);
-                }
-                if(similarities.get(relation2) == -1.) {
-                    double sim = emb.get(analogy.w3).difference(emb.get(analogy.w4)).cosSim(meanVector);
-                    similarities.put(relation2, sim);
+            if (emb.contains(analogy.w3) && emb.contains(analogy.w4)) {
+                if (!similarities.containsKey(relation2)) {
+                    meanVector.add(emb.get(analogy.w3).difference(emb.get(analogy.w4)));
+                    similarities.put(relation2, -1.);
                 }
             }
-
-            System.out.println(similarities.size() + "\t" + category);
-            sims.putAll(similarities);
         }
-        return sims;
+        meanVector.scalarMultiply(1. / similarities.size());
+
+        for (Analogy analogy : analogies) {
+            String relation1 = analogy.w1 + ":" + analogy.w2;
+            String relation2 = analogy.w3 + ":" + analogy.w4;
+            if(similarities.get(relation1) == -1.) {
+                double sim = emb.get(analogy.w1).difference(emb.get(analogy.w2)).cosSim(meanVector);
+                similarities.put(relation1, sim);
+            }
+            if(similarities.get(relation2) == -1.) {
+                double sim = emb.get(analogy.w3).difference(emb.get(analogy.w4)).cosSim(meanVector);
+                similarities.put(relation2, sim);
+            }
+        }
+        return similarities;
     }
 
     private WordEmbedding analogyHypothesisEmbedding(Analogy analogy) {
@@ -351,18 +458,5 @@ public class AnalogyExperiment {
         return calculated;
     }
 
-    /**
-     * Compute Levy & Goldberg's 3CosMul score for an analogy
-     * All vectors should be positive!
-     * @param w1 word embedding for first word in analogy
-     * @param w2 second
-     * @param w3 third
-     * @param w4 fourth (hypothesis or gold)
-     * @return multiplicative score (does not normalize vectors)
-     */
-    private double scoreLevyGoldberg(WordEmbedding w1, WordEmbedding w2, WordEmbedding w3, WordEmbedding w4) {
-        return w4.cosSim(w3) * w4.cosSim(w2) / (.001 + w4.cosSim(w1));
-    }
-
 }
 
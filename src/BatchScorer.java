@@ -0,0 +1,219 @@
+/**
+ * Ranks the fourth word of many analogies at once under the baseline, 3CosAdd and 3CosMul methods
+ * Query vectors for a block of analogies are scored against one tile of vocabulary rows at a time,
+ *      so every row is read from memory once per block rather than once per analogy. Blocks are scored in parallel.
+ * Scores are computed exactly as in AnalogyExperiment, so ranks are unchanged.
+ * On quantized embeddings, 3CosAdd and baseline candidates are compared using the compact codes (see Embeddings.dotExceeds),
+ *      and only rows too close to call are rescored at full precision; ranks are still exact.
+ * The vocabulary shifted by +1 in every dimension (for 3CosMul) and its norms are computed once, when the scorer is created,
+ *      so a candidate's 3CosMul score is three dot products with no allocation. Create a new scorer once isCurrent() is false.
+ */
+public class BatchScorer {
+
+    // analogies scored together against each tile
+    private static final int BLOCK_ANALOGIES = 32;
+    // vocabulary rows per tile (with their shifted copies, small enough to stay in cache while a block is scored)
+    private static final int TILE_ROWS = 256;
+
+    public static final int BASELINE = 0;
+    public static final int ADD = 1;
+    public static final int MUL = 2;
+
+    private final Embeddings emb;
+    // compare candidates with emb.dotExceeds rather than against a full-precision tile
+    private final boolean quantized;
+    // every row of emb, shifted by +1 in every dimension
+    private final HeapVectorStore shifted;
+    private final double[] shiftedMags;
+    // emb.modCount() when the shifted copy was made
+    private final int modCount;
+
+    public BatchScorer(Embeddings emb) {
+        this.emb = emb;
+        quantized = emb.isQuantized();
+        modCount = emb.modCount();
+        int dim = emb.dimensionality();
+        int size = emb.size();
+        shifted = new HeapVectorStore(dim, size);
+        shiftedMags = new double[size];
+        float[] row = new float[dim];
+        for(int i=0; i<size; i++) {
+            emb.copyRows(i, i + 1, row);
+            for(int j=0; j<dim; j++) {
+                row[j] += 1.;
+            }
+            shifted.add(row);
+            shiftedMags[i] = shifted.norm(i);
+        }
+    }
+
+    /**
+     * @return false if the embeddings have been filtered, normalized, quantized or added to since this scorer was created
+     */
+    public boolean isCurrent() {
+        return emb.modCount() == modCount;
+    }
+
+    /**
+     * Rank the fourth word of every analogy among the whole vocabulary (other than the analogy's first three words)
+     * @param indices dictionary indices of the four words of each analogy ({w1, w2, w3, w4}; -1 for a missing word)
+     * @return ranks by method (BASELINE, ADD, MUL) and analogy; 1 is best. Analogies with a missing word get size()
+     */
+    public int[][] scoreRanks(int[][] indices) {
+        return scoreRanks(indices, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Rank the fourth word of every analogy, but only as far as a maximum rank
+     * Scoring an analogy under a method stops as soon as its rank is known to exceed maxRank,
+     *      and the scan over the vocabulary stops once that has happened for every analogy and method in a block
+     * @param indices dictionary indices of the four words of each analogy ({w1, w2, w3, w4}; -1 for a missing word)
+     * @param maxRank the highest rank that needs to be known exactly
+     * @return ranks by method (BASELINE, ADD, MUL) and analogy; ranks above maxRank are reported as maxRank + 1
+     */
+    public int[][] scoreRanks(int[][] indices, int maxRank) {
+        int[][] ranks = new int[3][indices.length];
+        int nBlocks = (indices.length + BLOCK_ANALOGIES - 1) / BLOCK_ANALOGIES;
+        int[] done = new int[1];
+        Threading.parallelFor(nBlocks, (begin, end) -> {
+            for(int block = begin; block < end; block++) {
+                int blockStart = block * BLOCK_ANALOGIES;
+                int blockEnd = Math.min(indices.length, blockStart + BLOCK_ANALOGIES);
+                scoreBlock(indices, ranks, blockStart, blockEnd, maxRank);
+                // counted and printed under one lock so progress lines come out in increasing order
+                synchronized(done) {
+                    done[0] += blockEnd - blockStart;
+                    System.out.println(done[0] + " analogy ranks calculated");
+                }
+            }
+        });
+        return ranks;
+    }
+
+    /**
+     * Query vectors and gold scores for one analogy
+     */
+    private static class Query {
+        int i1, i2, i3, i4;
+        WordEmbedding calculated;
+        WordEmbedding w3;
+        double calculatedMag, w3Mag;
+        // word vectors shifted by +1 in every dimension, for 3CosMul
+        WordEmbedding w1p, w2p, w3p;
+        double w1pMag, w2pMag, w3pMag;
+        double addScore, baselineScore, mulScore;
+        int addRank = 1, baselineRank = 1, mulRank = 1;
+    }
+
+    private void scoreBlock(int[][] indices, int[][] ranks, int blockStart, int blockEnd, int maxRank) {
+        int dim = emb.dimensionality();
+        int nQueries = 0;
+        Query[] queries = new Query[blockEnd - blockStart];
+        float[] gold = new float[dim];
+        float[] goldShifted = new float[dim];
+        for(int a = blockStart; a < blockEnd; a++) {
+            int[] words = indices[a];
+            if(words[0] < 0 || words[1] < 0 || words[2] < 0 || words[3] < 0) {
+                queries[a - blockStart] = null;
+                continue;
+            }
+            Query query = new Query();
+            query.i1 = words[0];
+            query.i2 = words[1];
+            query.i3 = words[2];
+            query.i4 = words[3];
+            WordEmbedding w1 = emb.get(words[0]);
+            WordEmbedding w2 = emb.get(words[1]);
+            query.w3 = new WordEmbedding(emb.get(words[2]));
+            query.calculated = new WordEmbedding(query.w3);
+            query.calculated.add(w2);
+            query.calculated.subtract(w1);
+            query.calculatedMag = query.calculated.mag();
+            query.w3Mag = query.w3.mag();
+            query.w1p = shifted.row(words[0]);
+            query.w2p = shifted.row(words[1]);
+            query.w3p = shifted.row(words[2]);
+            query.w1pMag = shiftedMags[words[0]];
+            query.w2pMag = shiftedMags[words[1]];
+            query.w3pMag = shiftedMags[words[2]];
+            // the gold word itself is skipped in the scan, since a candidate scored along a different path
+            //      (e.g. rescored from a mapped or quantized store) could round differently and outrank it
+            emb.copyRows(words[3], words[3] + 1, gold);
+            query.addScore = query.calculated.dot(gold, 0);
+            query.baselineScore = query.w3.dot(gold, 0);
+            shifted.copyRows(words[3], words[3] + 1, goldShifted);
+            query.mulScore = mulScore(query, goldShifted, 0, shiftedMags[words[3]]);
+            queries[a - blockStart] = query;
+            nQueries++;
+        }
+
+        if(nQueries > 0) {
+            float[] tile = quantized ? null : new float[TILE_ROWS * dim];
+            float[] shiftedTile = new float[TILE_ROWS * dim];
+            int size = emb.size();
+            for(int tileStart = 0; tileStart < size; tileStart += TILE_ROWS) {
+                int rows = Math.min(TILE_ROWS, size - tileStart);
+                if(!quantized) {
+                    emb.copyRows(tileStart, tileStart + rows, tile);
+                }
+                shifted.copyRows(tileStart, tileStart + rows, shiftedTile);
+                int active = 0;
+                for(Query query : queries) {
+                    if(query == null) continue;
+                    boolean add = query.addRank <= maxRank;
+                    boolean baseline = query.baselineRank <= maxRank;
+                    boolean mul = query.mulRank <= maxRank;
+                    for(int r=0, offset=0; r<rows && (add || baseline || mul); r++, offset += dim) {
+                        int j = tileStart + r;
+                        if(j == query.i1 || j == query.i2 || j == query.i3 || j == query.i4) continue;
+                        if(add && exceeds(j, query.calculated, query.calculatedMag, query.addScore, tile, offset)
+                                && ++query.addRank > maxRank) {
+                            add = false;
+                        }
+                        if(baseline && exceeds(j, query.w3, query.w3Mag, query.baselineScore, tile, offset)
+                                && ++query.baselineRank > maxRank) {
+                            baseline = false;
+                        }
+                        if(mul && mulScore(query, shiftedTile, offset, shiftedMags[j]) > query.mulScore && ++query.mulRank > maxRank) {
+                            mul = false;
+                        }
+                    }
+                    if(add || baseline || mul) active++;
+                }
+                // every rank in the block is already past maxRank
+                if(active == 0) break;
+            }
+        }
+
+        int missingRank = (int) Math.min(emb.size(), (long) maxRank + 1);
+        for(int a = blockStart; a < blockEnd; a++) {
+            Query query = queries[a - blockStart];
+            ranks[BASELINE][a] = query == null ? missingRank : query.baselineRank;
+            ranks[ADD][a] = query == null ? missingRank : query.addRank;
+            ranks[MUL][a] = query == null ? missingRank : query.mulRank;
+        }
+    }
+
+    /**
+     * Whether a candidate's dot product with a query vector beats the gold word's score
+     * Uses the compact codes of quantized embeddings (rescoring close calls exactly), or else the candidate's row in the tile
+     */
+    private boolean exceeds(int j, WordEmbedding query, double queryMag, double score, float[] tile, int offset) {
+        if(quantized) {
+            return emb.dotExceeds(j, query, queryMag, score);
+        }
+        return query.dot(tile, offset) > score;
+    }
+
+    /**
+     * Levy & Goldberg's 3CosMul score of a shifted candidate row:
+     *      cos(w4, w3) * cos(w4, w2) / (.001 + cos(w1, w4)), with every vector shifted by +1 in every dimension
+     *      (so that all of them are positive) and not otherwise normalized
+     */
+    private static double mulScore(Query query, float[] shifted, int offset, double shiftedMag) {
+        double cos3 = query.w3p.dot(shifted, offset) / shiftedMag / query.w3pMag;
+        double cos2 = query.w2p.dot(shifted, offset) / shiftedMag / query.w2pMag;
+        double cos1 = query.w1p.dot(shifted, offset) / shiftedMag / query.w1pMag;
+        return cos3 * cos2 / (.001 + cos1);
+    }
+}
@@ -0,0 +1,198 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * The word and vector position of every record in a word2vec binary file, kept in a small sidecar file (the .bin name plus .idx)
+ * Building it takes one pass over the .bin file; afterward any vector can be read without scanning for it
+ */
+public class BinFileIndex {
+
+    private static Logger LOGGER = Logger.getLogger(BinFileIndex.class.getName());
+
+    private static final int MAGIC = 0x57325649;
+    private static final String SUFFIX = ".idx";
+
+    private final int dimensionality;
+    // each word as a Phrase would store it
+    private final String[] words;
+    // byte offset of the first float of each vector
+    private final long[] vectorOffsets;
+
+    private BinFileIndex(int dimensionality, String[] words, long[] vectorOffsets) {
+        this.dimensionality = dimensionality;
+        this.words = words;
+        this.vectorOffsets = vectorOffsets;
+    }
+
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    public int size() {
+        return words.length;
+    }
+
+    /**
+     * @return the word of a record, in Phrase form
+     */
+    public String word(int i) {
+        return words[i];
+    }
+
+    /**
+     * @return the byte offset of a record's vector
+     */
+    public long vectorOffset(int i) {
+        return vectorOffsets[i];
+    }
+
+    /**
+     * Load the index of a binary file from its sidecar, or build it (and write the sidecar) if there is no up-to-date one
+     * @param binFile a word2vec binary file
+     * @return the index
+     * @throws IOException
+     */
+    public static BinFileIndex forFile(String binFile) throws IOException {
+        File bin = new File(binFile);
+        File sidecar = new File(binFile + SUFFIX);
+        if(sidecar.isFile()) {
+            try {
+                BinFileIndex index = load(sidecar, bin);
+                if(index != null) return index;
+                LOGGER.info("Index " + sidecar + " is out of date; rebuilding it");
+            } catch(IOException | NegativeArraySizeException e) {
+                LOGGER.warning("Could not read index " + sidecar + " (" + e + "); rebuilding it");
+            }
+        }
+        BinFileIndex index = build(binFile);
+        try {
+            index.save(sidecar, bin);
+        } catch(IOException e) {
+            LOGGER.warning("Could not write index " + sidecar + ": " + e.getMessage());
+        }
+        return index;
+    }
+
+    /**
+     * Scan a binary file for the position of every record, skipping over the vectors
+     * @param binFile a word2vec binary file
+     * @return the index
+     * @throws IOException
+     */
+    public static BinFileIndex build(String binFile) throws IOException {
+        LOGGER.info("Indexing word2vec binary file " + binFile + "...");
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(Paths.get(binFile), StandardOpenOption.READ))) {
+            String nWordsStr = reader.readToken((byte) ' ', StandardCharsets.US_ASCII);
+            String sizeStr = reader.readToken((byte) '\n', StandardCharsets.US_ASCII);
+            if(nWordsStr == null || sizeStr == null) {
+                throw new EOFException("Missing word2vec header in " + binFile);
+            }
+            int nWords = Integer.parseInt(nWordsStr.trim());
+            int size = Integer.parseInt(sizeStr.trim());
+            String[] words = new String[nWords];
+            long[] vectorOffsets = new long[nWords];
+            StringBuilder form = new StringBuilder();
+            for(int i=0; i<nWords; i++) {
+                int length = reader.readRawToken((byte) ' ');
+                if(length < 0) {
+                    throw new EOFException("Expected " + nWords + " words but found " + i);
+                }
+                words[i] = Phrase.formOf(reader.tokenBytes(), 0, length, true, form).toString();
+                vectorOffsets[i] = reader.position();
+                reader.skip(4L * size);
+                // see Word2vecReader.readBinFile
+                reader.skipIf((byte) '\n');
+            }
+            return new BinFileIndex(size, words, vectorOffsets);
+        }
+    }
+
+    /**
+     * Write the sidecar to a temporary file and rename it into place, so that an interrupted write never leaves a partial index
+     */
+    private void save(File sidecar, File bin) throws IOException {
+        File temp = new File(sidecar.getPath() + ".tmp");
+        try {
+            write(temp, bin);
+            Files.move(temp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private void write(File sidecar, File bin) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sidecar), 1 << 16))) {
+            out.writeInt(MAGIC);
+            // identify the version of the .bin file that was indexed
+            out.writeLong(bin.length());
+            out.writeLong(bin.lastModified());
+            out.writeInt(dimensionality);
+            out.writeInt(words.length);
+            for(int i=0; i<words.length; i++) {
+                out.writeUTF(words[i]);
+                out.writeLong(vectorOffsets[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the index, or null if the sidecar was written for a different version of the .bin file
+     */
+    private static BinFileIndex load(File sidecar, File bin) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1 << 16))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException(sidecar + " is not a word2vec file index");
+            }
+            if(in.readLong() != bin.length() || in.readLong() != bin.lastModified()) {
+                return null;
+            }
+            int dimensionality = in.readInt();
+            int nWords = in.readInt();
+            // checked before allocating, so a damaged count can't ask for more memory than the .bin file could need
+            int[] header = readHeader(bin);
+            if(nWords != header[0] || dimensionality != header[1]) {
+                throw new IOException(sidecar + " holds " + nWords + " words of " + dimensionality + " dimensions, but "
+                        + bin + " has " + header[0] + " of " + header[1]);
+            }
+            String[] words = new String[nWords];
+            long[] vectorOffsets = new long[nWords];
+            for(int i=0; i<nWords; i++) {
+                words[i] = in.readUTF();
+                vectorOffsets[i] = in.readLong();
+                if(vectorOffsets[i] < 0 || vectorOffsets[i] + 4L * dimensionality > bin.length()) {
+                    throw new IOException("Offset " + vectorOffsets[i] + " in " + sidecar + " is outside " + bin);
+                }
+            }
+            return new BinFileIndex(dimensionality, words, vectorOffsets);
+        }
+    }
+
+    /**
+     * Read the word count and dimensionality from the header line of a binary file
+     * @return {nWords, dimensionality}
+     */
+    private static int[] readHeader(File bin) throws IOException {
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(bin.toPath(), StandardOpenOption.READ))) {
+            String nWordsStr = reader.readToken((byte) ' ', StandardCharsets.US_ASCII);
+            String sizeStr = reader.readToken((byte) '\n', StandardCharsets.US_ASCII);
+            if(nWordsStr == null || sizeStr == null) {
+                throw new EOFException("Missing word2vec header in " + bin);
+            }
+            return new int[] {Integer.parseInt(nWordsStr.trim()), Integer.parseInt(sizeStr.trim())};
+        }
+    }
+
+    /**
+     * @return the vector offsets of all records (a copy)
+     */
+    long[] vectorOffsets() {
+        return Arrays.copyOf(vectorOffsets, vectorOffsets.length);
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Buffered reading of words and little-endian floats from a channel, for binary embedding files
+ * Bytes are read into one large direct buffer; floats are decoded in bulk through a FloatBuffer view,
+ *      and reads that return fewer bytes than asked for are simply continued
+ */
+public class ChannelReader implements AutoCloseable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 24;
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    private byte[] wordBytes = new byte[64];
+    private long position = 0;
+
+    public ChannelReader(ReadableByteChannel channel) {
+        this(channel, DEFAULT_BUFFER_SIZE);
+    }
+
+    public ChannelReader(ReadableByteChannel channel, int bufferSize) {
+        this.channel = channel;
+        buffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        // start out empty
+        buffer.flip();
+    }
+
+    /**
+     * @return the number of bytes consumed so far
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Make sure a number of bytes are buffered, reading more from the channel as needed
+     * @param n the number of bytes needed
+     * @return false if the channel ends first
+     */
+    public boolean ensure(int n) throws IOException {
+        if(buffer.remaining() >= n) return true;
+        if(n > buffer.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(n, 2 * buffer.capacity())).order(ByteOrder.LITTLE_ENDIAN);
+            bigger.put(buffer);
+            buffer = bigger;
+        } else {
+            buffer.compact();
+        }
+        while(buffer.position() < n) {
+            if(channel.read(buffer) < 0) break;
+        }
+        buffer.flip();
+        return buffer.remaining() >= n;
+    }
+
+    /**
+     * @return the next byte, without consuming it, or -1 at the end of the channel
+     */
+    public int peek() throws IOException {
+        return ensure(1) ? buffer.get(buffer.position()) & 0xff : -1;
+    }
+
+    /**
+     * @return the next byte, or -1 at the end of the channel
+     */
+    public int read() throws IOException {
+        if(!ensure(1)) return -1;
+        position++;
+        return buffer.get() & 0xff;
+    }
+
+    /**
+     * Read bytes up to (and consuming, but not including) a delimiter, and decode them
+     * @param delimiter the byte that ends the token
+     * @param charset the encoding of the token
+     * @return the token, or null if the channel ends before any bytes are read
+     * @throws EOFException if the channel ends in the middle of a token
+     */
+    public String readToken(byte delimiter, Charset charset) throws IOException {
+        int length = readRawToken(delimiter);
+        return length < 0 ? null : new String(wordBytes, 0, length, charset);
+    }
+
+    /**
+     * Read bytes up to (and consuming, but not including) a delimiter without decoding them
+     * The bytes stay in tokenBytes() until the next token is read
+     * @param delimiter the byte that ends the token
+     * @return the number of bytes in the token, or -1 if the channel ends before any bytes are read
+     * @throws EOFException if the channel ends in the middle of a token
+     */
+    public int readRawToken(byte delimiter) throws IOException {
+        int length = 0;
+        while(true) {
+            if(!buffer.hasRemaining() && !ensure(1)) {
+                if(length == 0) return -1;
+                throw new EOFException("File ended in the middle of a word");
+            }
+            byte b = buffer.get();
+            position++;
+            if(b == delimiter) break;
+            if(length == wordBytes.length) {
+                wordBytes = Arrays.copyOf(wordBytes, length * 2);
+            }
+            wordBytes[length++] = b;
+        }
+        return length;
+    }
+
+    /**
+     * @return the bytes of the last token read by readRawToken (the array is reused)
+     */
+    public byte[] tokenBytes() {
+        return wordBytes;
+    }
+
+    /**
+     * Skip over bytes without looking at them
+     * @param n the number of bytes to skip
+     * @throws EOFException if the channel ends first
+     */
+    public void skip(long n) throws IOException {
+        while(n > 0) {
+            if(!buffer.hasRemaining() && !ensure(1)) {
+                throw new EOFException("File ended in the middle of a vector");
+            }
+            int skipped = (int) Math.min(n, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            position += skipped;
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Read little-endian floats
+     * @param dest the array to fill completely
+     * @throws EOFException if the channel ends first
+     */
+    public void readFloats(float[] dest) throws IOException {
+        int bytes = 4 * dest.length;
+        if(!ensure(bytes)) {
+            throw new EOFException("File ended in the middle of a vector");
+        }
+        buffer.asFloatBuffer().get(dest);
+        buffer.position(buffer.position() + bytes);
+        position += bytes;
+    }
+
+    /**
+     * Skip a byte if it is the one expected
+     * @return true if it was skipped
+     */
+    public boolean skipIf(byte expected) throws IOException {
+        if(peek() == (expected & 0xff)) {
+            read();
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
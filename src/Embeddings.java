@@ -1,5 +1,6 @@
 import com.sun.istack.internal.Nullable;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -12,23 +13,84 @@ import java.util.*;
  */
 public class Embeddings implements Iterable<Phrase>, Serializable {
 
+    // the value computed for the original class, so that streams written by it can still be read (see readObject)
+    private static final long serialVersionUID = 528784777522467075L;
+
     // For looking up the index based on the word
-    private Map<Phrase,Integer> dictionary;
+    private PhraseIndex dictionary;
     // For finding the word based on the index
     private List<Phrase> terms;
-    private List<WordEmbedding> vectors;
+    private VectorStore vectors;
 
     // Word frequency (from vocab.txt file)
-    private List<Integer> frequency;
+    private int[] frequency;
 
     private int dimensionality;
 
+    // optional approximate nearest-neighbor index, used for top-n searches when approximateSearch is set
+    private HnswIndex nearestNeighborIndex = null;
+    private boolean approximateSearch = false;
+
+    // counts changes to the words or vectors made through this object (see modCount)
+    private transient int modCount = 0;
+
     public Embeddings(int dimensionality) {
+        this(dimensionality, 0);
+    }
+
+    /**
+     * @param dimensionality length of every vector
+     * @param expectedSize number of words to allocate space for up front
+     */
+    public Embeddings(int dimensionality, int expectedSize) {
         this.dimensionality = dimensionality;
-        dictionary = new HashMap<>();
+        dictionary = new PhraseIndex(expectedSize);
+        terms = new ArrayList<>(expectedSize);
+        vectors = new HeapVectorStore(dimensionality, expectedSize);
+        frequency = new int[Math.max(16, expectedSize)];
+    }
+
+    /**
+     * Create an empty dictionary on top of existing vector storage
+     * Words must then be added with addWord, one for each row of the store, in order
+     * @param vectors storage whose rows will be matched up with words as they are added
+     */
+    public Embeddings(VectorStore vectors) {
+        this.dimensionality = vectors.dimensionality();
+        this.vectors = vectors;
+        dictionary = new PhraseIndex();
         terms = new ArrayList<>();
-        vectors = new ArrayList<>();
-        frequency = new ArrayList<>();
+        frequency = new int[16];
+    }
+
+    /**
+     * Assemble an Embeddings object from parts that already match up (as loaded by EmbeddingsSnapshot)
+     * @param vectors one row per word
+     * @param dictionary indices of the words
+     * @param terms the words, by index
+     * @param frequency word frequencies, by index (the array may be longer than the number of words)
+     */
+    Embeddings(VectorStore vectors, PhraseIndex dictionary, List<Phrase> terms, int[] frequency) {
+        this.dimensionality = vectors.dimensionality();
+        this.vectors = vectors;
+        this.dictionary = dictionary;
+        this.terms = terms;
+        this.frequency = frequency;
+    }
+
+    PhraseIndex dictionary() {
+        return dictionary;
+    }
+
+    VectorStore vectors() {
+        return vectors;
+    }
+
+    /**
+     * @return the frequency of every word, by index (-1 where unknown)
+     */
+    int[] frequencies() {
+        return Arrays.copyOf(frequency, size());
     }
 
     public int dimensionality() {
@@ -42,28 +104,81 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
      * @return the counts of that phrase
      */
     public int getFrequency(Phrase phrase) {
-        Integer wordInt = dictionary.get(phrase);
-        if(wordInt == null) return 0;
-        return frequency.get(dictionary.get(phrase));
+        int wordInt = dictionary.indexOf(phrase);
+        if(wordInt < 0) return 0;
+        return frequency[wordInt];
     }
 
     public int getRank(Phrase phrase) {
-        return dictionary.get(phrase) + 1;
+        return dictionary.indexOf(phrase) + 1;
+    }
+
+    /**
+     * Get the index of a word/phrase in the dictionary
+     * @param phrase the phrase to look up
+     * @return its index (0 for the first word read in), or -1 if it is not present
+     */
+    public int indexOf(Phrase phrase) {
+        return dictionary.indexOf(phrase);
+    }
+
+    /**
+     * Get the index of a word/phrase in the dictionary without creating a Phrase
+     * Unlike contains(String), the string is not normalized, so multi-word phrases must be separated by single spaces
+     * @param phrase the exact form of the phrase to look up
+     * @return its index (0 for the first word read in), or -1 if it is not present
+     */
+    public int indexOf(CharSequence phrase) {
+        return dictionary.indexOf(phrase);
     }
 
     public void setWordFrequency(Phrase phrase, int freq) {
-        if(!dictionary.containsKey(phrase)) return;
-        frequency.set(dictionary.get(phrase), freq);
+        int wordInt = dictionary.indexOf(phrase);
+        if(wordInt < 0) return;
+        frequency[wordInt] = freq;
+    }
+
+    /**
+     * Set the frequency of the word at a given index (no dictionary lookup)
+     * @param index an index between 0 and size()-1
+     * @param freq the number of occurrences of the word
+     */
+    public void setWordFrequency(int index, int freq) {
+        frequency[index] = freq;
     }
 
     public void addWordAndEmbedding(Phrase phrase, WordEmbedding embedding) {
-        if(dictionary.containsKey(phrase)) {
-            return;
+        addWordAndEmbedding(phrase, embedding.toArray());
+    }
+
+    /**
+     * Add a word whose vector will be the next row of the backing store (which the caller is responsible for adding)
+     * @param phrase the word/phrase
+     * @return true if the word was added; false if it was already present (in which case no row should be added)
+     */
+    boolean addWord(Phrase phrase) {
+        int index = dictionary.add(phrase.toString());
+        if(index < 0) {
+            return false;
         }
-        dictionary.put(phrase, dictionary.size());
         terms.add(phrase);
-        vectors.add(embedding);
-        frequency.add(-1);
+        modCount++;
+        if(index >= frequency.length) {
+            frequency = Arrays.copyOf(frequency, Math.max(16, frequency.length * 2));
+        }
+        frequency[index] = -1;
+        return true;
+    }
+
+    /**
+     * Add a word and its vector. The vector is copied into this object's storage
+     * @param phrase the word/phrase
+     * @param vector an array of length dimensionality()
+     */
+    public void addWordAndEmbedding(Phrase phrase, float[] vector) {
+        if(addWord(phrase)) {
+            vectors.add(vector);
+        }
     }
 
     public WordEmbedding get(String string) {
@@ -71,8 +186,109 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
     }
 
     public WordEmbedding get(Phrase phrase) {
-        if(!dictionary.containsKey(phrase)) return null;
-        return vectors.get(dictionary.get(phrase));
+        int wordInt = dictionary.indexOf(phrase);
+        if(wordInt < 0) return null;
+        return vectors.row(wordInt);
+    }
+
+    /**
+     * Get the embedding at a given index in the dictionary
+     * The returned object is a view; changing it will change the vector stored here
+     * @param index an index between 0 and size()-1
+     * @return the embedding
+     */
+    public WordEmbedding get(int index) {
+        return vectors.row(index);
+    }
+
+    /**
+     * Dot product of the embedding at a given index with another embedding (no view is created)
+     * @param index an index between 0 and size()-1
+     * @param embedding an embedding of the same dimensionality
+     * @return the dot product
+     */
+    public double dot(int index, WordEmbedding embedding) {
+        return vectors.dot(index, embedding);
+    }
+
+    /**
+     * Copy the embeddings at a range of indices, one after another, into an array
+     * @param begin the first index (inclusive)
+     * @param end the last index (exclusive)
+     * @param dest array of length at least (end - begin) * dimensionality()
+     */
+    public void copyRows(int begin, int end, float[] dest) {
+        vectors.copyRows(begin, end, dest);
+    }
+
+    /**
+     * Decide whether the dot product of the embedding at a given index with another embedding exceeds a threshold
+     * Gives the same answer as dot(index, embedding) > threshold, but can be much faster on quantized embeddings
+     * @param index an index between 0 and size()-1
+     * @param embedding an embedding of the same dimensionality
+     * @param embeddingMag the magnitude of embedding
+     * @param threshold the score to compare against
+     * @return true if the dot product is greater than the threshold
+     */
+    public boolean dotExceeds(int index, WordEmbedding embedding, double embeddingMag, double threshold) {
+        return vectors.dotExceeds(index, embedding, embeddingMag, threshold);
+    }
+
+    /**
+     * Release the file held open by embeddings read lazily (see Word2vecReader.openBinFile); does nothing for others
+     * Vectors that have not been read yet can't be looked up afterward
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if(vectors instanceof Closeable) {
+            ((Closeable) vectors).close();
+        }
+    }
+
+    /**
+     * Keep a compact copy of all vectors (8-bit or half-precision) for fast scans
+     * Similarity rankings are unchanged, since close calls are rescored using the full-precision vectors
+     * Vectors returned by get() will be copies from then on, so they can no longer be used to modify the embeddings
+     * @param encoding the compact format to use
+     */
+    public void quantize(QuantizedVectorStore.Encoding encoding) {
+        if(vectors instanceof QuantizedVectorStore) return;
+        vectors = new QuantizedVectorStore(vectors, encoding);
+        modCount++;
+    }
+
+    /**
+     * @return true if scans run on a compact copy of the vectors (see quantize)
+     */
+    public boolean isQuantized() {
+        return vectors instanceof QuantizedVectorStore;
+    }
+
+    /**
+     * Use an approximate nearest-neighbor index (built over this object) for top-n searches
+     * The index is discarded if embeddings are filtered, since that changes every word's index
+     * @param index an index built by HnswIndex.build or loaded with HnswIndex.load
+     */
+    public void setNearestNeighborIndex(HnswIndex index) {
+        this.nearestNeighborIndex = index;
+        approximateSearch = index != null;
+    }
+
+    public HnswIndex getNearestNeighborIndex() {
+        return nearestNeighborIndex;
+    }
+
+    /**
+     * Choose between exact (brute force) and approximate (indexed) search in getTopNSimilar and mostSimilarTo
+     * Approximate search is only used if an index has been set
+     * @param approximateSearch true to use the nearest-neighbor index
+     */
+    public void setApproximateSearch(boolean approximateSearch) {
+        this.approximateSearch = approximateSearch;
+    }
+
+    private boolean useIndex() {
+        return approximateSearch && nearestNeighborIndex != null;
     }
 
     /**
@@ -80,28 +296,32 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
      * @param toKeep
      */
     public void filterOn(Set<Phrase> toKeep) {
-        for(int i=0; i<size(); i++) {
-            if(!toKeep.contains(terms.get(i))) {
-                terms.set(i, null);
-                vectors.set(i, null);
-                dictionary.remove(terms.get(i));
-            }
-        }
+        filter((rank, phrase) -> toKeep.contains(terms.get(rank)));
+    }
+
+    /**
+     * Keep only the words that pass a filter. Words no longer present are deleted
+     * Filtering while reading (see the readers that take a WordFilter) is much cheaper when possible
+     * @param filter decides which words to keep (ranks are the current indices of words)
+     */
+    public void filter(WordFilter filter) {
+        int[] keep = new int[size()];
         List<Phrase> newTerms = new ArrayList<>();
-        List<WordEmbedding> newVectors = new ArrayList<>();
-        Map<Phrase, Integer> newDictionary = new HashMap<>();
         int j=0;
-        for(int i=0; i<terms.size(); i++) {
-            if(terms.get(i) != null) {
-                newDictionary.put(terms.get(i), j);
+        for(int i=0; i<terms.size() && !filter.done(i); i++) {
+            if(filter.accept(i, terms.get(i).toString())) {
                 newTerms.add(terms.get(i));
-                newVectors.add(vectors.get(i));
+                frequency[j] = frequency[i];
+                keep[j] = i;
                 j++;
             }
         }
+        keep = Arrays.copyOf(keep, j);
+        nearestNeighborIndex = null;
+        vectors.retain(keep);
+        dictionary.retain(keep);
+        modCount++;
         terms = newTerms;
-        dictionary = newDictionary;
-        vectors = newVectors;
     }
 
     /**
@@ -116,67 +336,92 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
         WordEmbedding we = get(phrase);
         return getTopNSimilar(we, n);
     }
-    // todo: call threaded!
+
     public Map<Phrase, Double> getTopNSimilar(WordEmbedding we, int n) {
-//        int phraseIndex = dictionary.get(phrase);
-        List<Phrase> mostSimilarPhrases = new ArrayList<>();
-        List<Double> mostSimilarScores = new ArrayList<>();
-        Map<Phrase, Double> mostSimilar = new LinkedHashMap<>();
-        double[] scores = new double[vectors.size()];
-        for (int j = 0; j < scores.length; j++) {
-            scores[j] = we.dot(vectors.get(j));
-        }
-//        scores[phraseIndex] = 0;
-        mostSimilarPhrases.add(terms.get(0));
-        mostSimilarScores.add(scores[0]);
-        for (int i = 0; i < scores.length; i++) {
-            for (int j = 0; j < n; j++) {
-                if (j >= mostSimilarPhrases.size()) {
-                    mostSimilarScores.add(scores[i]);
-                    mostSimilarPhrases.add(terms.get(i));
-                    break;
-                }
-                if (scores[i] > mostSimilarScores.get(j)) {
-                    mostSimilarScores.add(j, scores[i]);
-                    mostSimilarPhrases.add(j, terms.get(i));
-                    break;
-                }
-            }
+        return getTopNSimilar(we, n, Collections.emptySet());
+    }
+
+    /**
+     * Get the n most similar phrases to an embedding, leaving out some phrases (such as the words of an analogy)
+     * @param we the embedding to compare against
+     * @param n the number of phrases to return
+     * @param exclude phrases that will never be returned
+     * @return phrases and their dot products with we, from most to least similar
+     */
+    public Map<Phrase, Double> getTopNSimilar(WordEmbedding we, int n, Collection<Phrase> exclude) {
+        int[] excludeIndices = new int[exclude.size()];
+        int nExcluded = 0;
+        for(Phrase phrase : exclude) {
+            int index = dictionary.indexOf(phrase);
+            if(index >= 0) excludeIndices[nExcluded++] = index;
         }
-        for (int i = 0; i < n; i++) {
-            mostSimilar.put(mostSimilarPhrases.get(i), mostSimilarScores.get(i));
+        SearchResult result = topK(we, n, Arrays.copyOf(excludeIndices, nExcluded));
+        Map<Phrase, Double> mostSimilar = new LinkedHashMap<>();
+        for(int i=0; i<result.size(); i++) {
+            mostSimilar.put(terms.get(result.ids[i]), result.scores[i]);
         }
         return mostSimilar;
     }
 
-    // todo: call threaded!
     public Phrase mostSimilarTo(WordEmbedding embedding) {
-        double best = -Double.MAX_VALUE;
-        Phrase bestPhrase = new Phrase("");
-        for(int j=0; j<vectors.size(); j++) {
-            double score = embedding.dot(vectors.get(j));
-            if(score > best) {
-                bestPhrase = terms.get(j);
-                best = score;
+        SearchResult result = topK(embedding, 1);
+        return result.size() == 0 ? new Phrase("") : terms.get(result.ids[0]);
+    }
+
+    /**
+     * Find the k embeddings with the highest dot products with a vector
+     * Exact unless approximate search is turned on; the vocabulary is split into chunks processed in parallel,
+     *      each keeping only its own k best, which are merged at the end
+     * @param embedding a vector of the same dimensionality
+     * @param k the number of results wanted
+     * @param exclude dictionary indices that will never be returned
+     * @return indices and scores, best first (ties go to the lower index)
+     */
+    public SearchResult topK(WordEmbedding embedding, int k, int... exclude) {
+        TopKHeap heap = new TopKHeap(Math.min(k, vectors.size()));
+        if(useIndex()) {
+            SearchResult result = nearestNeighborIndex.search(embedding, k + exclude.length);
+            for(int i=0; i<result.size(); i++) {
+                if(!VectorStore.excluded(result.ids[i], exclude)) heap.offer(result.ids[i], result.scores[i]);
             }
+            return heap.toResult();
         }
-        return bestPhrase;
+        int n = vectors.size();
+        if(n < PARALLEL_TOP_K_ROWS) {
+            vectors.offerRange(embedding, heap, 0, n, exclude);
+        } else {
+            int capacity = heap.capacity();
+            TopKHeap merged = Threading.parallelReduce(n, (begin, end) -> {
+                TopKHeap chunkHeap = new TopKHeap(capacity);
+                vectors.offerRange(embedding, chunkHeap, begin, end, exclude);
+                return chunkHeap;
+            }, (a, b) -> {
+                a.offerAll(b);
+                return a;
+            });
+            heap.offerAll(merged);
+        }
+        return heap.toResult();
     }
 
+    // below this vocabulary size, handing work out to other threads costs more than it saves
+    private static final int PARALLEL_TOP_K_ROWS = 50000;
+
     public WordEmbedding getSumVector(Collection<Phrase> sums, @Nullable Collection<Phrase> differences) {
         WordEmbedding ans = new WordEmbedding(dimensionality);
         for(Phrase addword : sums) {
-            if(dictionary.containsKey(addword)) {
-                int wordInt = dictionary.get(addword);
-                ans.add(vectors.get(dictionary.get(addword)));
+            int wordInt = dictionary.indexOf(addword);
+            if(wordInt >= 0) {
+                ans.add(vectors.row(wordInt));
             }
             else
                 System.out.println("WARNING: word " + addword + " not in dictionary; ignoring");
         }
         if(differences != null) {
             for (Phrase subword : differences) {
-                if(dictionary.containsKey(subword)) {
-                    ans.subtract(vectors.get(dictionary.get(subword)));
+                int wordInt = dictionary.indexOf(subword);
+                if(wordInt >= 0) {
+                    ans.subtract(vectors.row(wordInt));
                 }
                 else
                     System.out.println("WARNING: word " + subword + " not in dictionary; ignoring");
@@ -185,16 +430,46 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
         return ans;
     }
 
+    /**
+     * Scale every embedding to unit length (in parallel). Does nothing if they are already normalized
+     */
     public void normalizeAll() {
-        for(WordEmbedding embedding : vectors)
-            embedding.normalize();
+        if(vectors.isNormalized()) return;
+        vectors.normalizeRows();
+        modCount++;
+    }
+
+    /**
+     * Count of changes made by adding words, filtering, normalizing or quantizing, for objects that precompute
+     *      something from the vectors (e.g. BatchScorer) to tell whether it is out of date.
+     *      Vectors changed through the views returned by get() are not counted
+     * @return a number that changes whenever the words or vectors are changed through this object
+     */
+    public int modCount() {
+        return modCount;
+    }
+
+    /**
+     * @return true if every embedding has unit length (normalizeAll has been called, and nothing has changed since)
+     */
+    public boolean isNormalized() {
+        return vectors.isNormalized();
+    }
+
+    /**
+     * Magnitude of the embedding at a given index (cached after the first call)
+     * @param index an index between 0 and size()-1
+     * @return its magnitude
+     */
+    public double norm(int index) {
+        return vectors.norm(index);
     }
 
     public boolean contains(Phrase phrase) {
-        return dictionary.containsKey(phrase);
+        return dictionary.indexOf(phrase) >= 0;
     }
     public boolean contains(String phrase) {
-        return dictionary.containsKey(new Phrase(phrase));
+        return dictionary.indexOf(new Phrase(phrase)) >= 0;
     }
 
     /**
@@ -226,31 +501,27 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
     public double[] calculateScoresThreaded(WordEmbedding thisEmb) {
         int n = vectors.size();
         double[] scores = new double[n];
-        Threading.chunkAndThread(n, DotThread.class, scores, thisEmb, vectors);
+        Threading.parallelFor(n, (begin, end) -> vectors.dotRange(thisEmb, scores, begin, end));
         return scores;
     }
 
-    public static class DotThread extends Threading.IntRangeThread {
-        private double[] results;
-        private WordEmbedding emb;
-        private List<WordEmbedding> vectors;
-
-        @Override
-        public void initializeParams(Object[] args) {
-            this.results = (double[]) args[0];
-            this.emb = (WordEmbedding) args[1];
-            this.vectors = (List<WordEmbedding>) args[2];
-        }
-        @Override
-        public void run() {
-            for (int i = begin; i < end; i++) {
-                results[i] = vectors.get(i).dot(emb);
-            }
-        }
-    }
-
+    /**
+     * Iterate over views of every stored embedding, in dictionary order
+     * @return an iterator of lightweight WordEmbedding views
+     */
     public Iterator<WordEmbedding> embeddingIterator() {
-        return vectors.iterator();
+        return new Iterator<WordEmbedding>() {
+            private int i = 0;
+            @Override
+            public boolean hasNext() {
+                return i < vectors.size();
+            }
+            @Override
+            public WordEmbedding next() {
+                if(!hasNext()) throw new NoSuchElementException();
+                return vectors.row(i++);
+            }
+        };
     }
 
     /**
@@ -264,22 +535,61 @@ public class Embeddings implements Iterable<Phrase>, Serializable {
 
     /**
      * Override the default read/write object
+     * Written as the words, their frequencies (int[]), the dimensionality and then each vector as a float[].
+     *      Streams in the original layout (which starts with the word-to-index map) are also read
      * @param stream
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
-        stream.writeObject(dictionary);
         stream.writeObject(terms);
-        stream.writeObject(vectors);
-        stream.writeObject(frequency);
+        stream.writeObject(Arrays.copyOf(frequency, size()));
         stream.writeObject(dimensionality);
+        for(int i=0; i<size(); i++) {
+            stream.writeObject(vectors.row(i).toArray());
+        }
     }
+    @SuppressWarnings("unchecked")
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
-        dictionary = (Map<Phrase, Integer>) stream.readObject();
+        Object first = stream.readObject();
+        if(first instanceof Map) {
+            readOriginalLayout(stream);
+            return;
+        }
+        terms = (List<Phrase>) first;
+        dictionary = new PhraseIndex(terms.size());
+        for(Phrase phrase : terms) {
+            dictionary.add(phrase.toString());
+        }
+        frequency = (int[]) stream.readObject();
+        dimensionality = (int) stream.readObject();
+        vectors = new HeapVectorStore(dimensionality, terms.size());
+        for(int i=0; i<terms.size(); i++) {
+            vectors.add((float[]) stream.readObject());
+        }
+    }
+
+    /**
+     * Read the rest of a stream in the original layout: the term list, a List of WordEmbedding,
+     *      a List of Integer frequencies and the dimensionality (the word-to-index map has been read already, and is rebuilt)
+     */
+    @SuppressWarnings("unchecked")
+    private void readOriginalLayout(ObjectInputStream stream) throws IOException, ClassNotFoundException {
         terms = (List<Phrase>) stream.readObject();
-        vectors = (List<WordEmbedding>) stream.readObject();
-        frequency = (List<Integer>) stream.readObject();
+        List<WordEmbedding> oldVectors = (List<WordEmbedding>) stream.readObject();
+        List<Integer> oldFrequencies = (List<Integer>) stream.readObject();
         dimensionality = (int) stream.readObject();
+        dictionary = new PhraseIndex(terms.size());
+        for(Phrase phrase : terms) {
+            dictionary.add(phrase.toString());
+        }
+        frequency = new int[Math.max(16, terms.size())];
+        for(int i=0; i<oldFrequencies.size() && i<frequency.length; i++) {
+            frequency[i] = oldFrequencies.get(i);
+        }
+        vectors = new HeapVectorStore(dimensionality, terms.size());
+        for(WordEmbedding vector : oldVectors) {
+            vectors.add(vector.toArray());
+        }
     }
 
 
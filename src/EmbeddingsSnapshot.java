@@ -0,0 +1,433 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A compact binary file holding everything in an Embeddings object, laid out so that loading it takes almost no parsing:
+ *      a fixed header (version, dimensionality, size, flags), word frequencies, a packed table of words,
+ *      the tables of the word hash index, all vectors as one contiguous block of floats, and finally
+ *      (for quantized embeddings) the per-row scales and error bounds and the compact codes of every row.
+ * Vectors are read straight out of the memory-mapped file, and the hash index is loaded as is rather than rebuilt.
+ * Compact codes are copied onto the heap in bulk, so quantized embeddings are not encoded again.
+ * All numbers are little-endian.
+ */
+public class EmbeddingsSnapshot {
+
+    private static Logger LOGGER = Logger.getLogger(EmbeddingsSnapshot.class.getName());
+
+    private static final int MAGIC = 0x454d4253;
+    private static final int VERSION = 2;
+    // version 1 snapshots of quantized embeddings have no codes, so they are quantized again on loading
+    private static final int VERSION_WITHOUT_CODES = 1;
+    private static final int HEADER_BYTES = 64;
+    // the vector block starts on a cache line
+    private static final int VECTOR_ALIGNMENT = 64;
+
+    // flags
+    private static final int NORMALIZED = 1;
+    private static final int QUANTIZED = 2;
+    // error bounds of the codes allow for dot products accumulated in float precision (see WordEmbedding.FLOAT_ACCUMULATION)
+    private static final int FLOAT_ACCUMULATION = 4;
+
+    /**
+     * Write embeddings to a snapshot file
+     * @param emb the embeddings (quantized embeddings are written with their compact codes)
+     * @param filename the file to write
+     * @throws IOException
+     */
+    public static void write(Embeddings emb, String filename) throws IOException {
+        int dim = emb.dimensionality();
+        int size = emb.size();
+        PhraseIndex dictionary = emb.dictionary();
+        int[] slots = dictionary.slots();
+        byte[][] words = new byte[size][];
+        int[] wordOffsets = new int[size + 1];
+        for(int i=0; i<size; i++) {
+            words[i] = dictionary.keyAt(i).getBytes(StandardCharsets.UTF_8);
+            if((long) wordOffsets[i] + words[i].length > Integer.MAX_VALUE) {
+                throw new IOException("Too many characters in the vocabulary to write a snapshot");
+            }
+            wordOffsets[i + 1] = wordOffsets[i] + words[i].length;
+        }
+        VectorStore vectors = emb.vectors();
+        int flags = 0;
+        int encoding = -1;
+        if(emb.isNormalized()) {
+            flags |= NORMALIZED;
+        }
+        QuantizedVectorStore quantized = null;
+        if(vectors instanceof QuantizedVectorStore) {
+            quantized = (QuantizedVectorStore) vectors;
+            flags |= QUANTIZED;
+            encoding = quantized.encoding().ordinal();
+            if(WordEmbedding.FLOAT_ACCUMULATION) {
+                flags |= FLOAT_ACCUMULATION;
+            }
+        }
+
+        long wordsOffset = HEADER_BYTES + 4L * size + 4L * (size + 1);
+        long hashesOffset = align(wordsOffset + wordOffsets[size], 4);
+        long vectorsOffset = align(hashesOffset + 4L * size + 4L * slots.length, VECTOR_ALIGNMENT);
+        long codesOffset = vectorsOffset + 4L * size * dim;
+        long length = codesOffset + (quantized == null ? 0 : codeBytes(quantized.encoding(), size, dim));
+
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Output out = new Output(channel);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(dim);
+            out.putInt(size);
+            out.putInt(flags);
+            out.putInt(encoding);
+            out.putInt(slots.length);
+            out.putInt(0);
+            out.putLong(wordsOffset);
+            out.putLong(hashesOffset);
+            out.putLong(vectorsOffset);
+            out.putLong(length);
+            for(int frequency : emb.frequencies()) {
+                out.putInt(frequency);
+            }
+            for(int offset : wordOffsets) {
+                out.putInt(offset);
+            }
+            for(byte[] word : words) {
+                out.put(word);
+            }
+            out.padTo(hashesOffset);
+            for(int i=0; i<size; i++) {
+                out.putInt(dictionary.hashAt(i));
+            }
+            for(int slot : slots) {
+                out.putInt(slot);
+            }
+            out.padTo(vectorsOffset);
+            int tileRows = Math.max(1, (1 << 16) / Math.max(1, dim));
+            float[] tile = new float[tileRows * dim];
+            for(int begin=0; begin<size; begin+=tileRows) {
+                int end = Math.min(size, begin + tileRows);
+                emb.copyRows(begin, end, tile);
+                for(int j=0; j<(end - begin) * dim; j++) {
+                    out.putFloat(tile[j]);
+                }
+            }
+            if(quantized != null) {
+                writeCodes(quantized, out);
+            }
+            out.flush();
+        }
+        LOGGER.info("Wrote snapshot of " + size + " word vectors with " + dim + " dimensions");
+    }
+
+    /**
+     * Load a snapshot. The vectors stay in the mapped file rather than being read onto the heap
+     * @param filename a file written by write()
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings read(String filename) throws IOException {
+        ByteBuffer dict;
+        int version, dim, size, flags, encoding, nSlots;
+        long wordsOffset, hashesOffset, vectorsOffset;
+        VectorStore store;
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            if(channel.size() < HEADER_BYTES) {
+                throw new IOException(filename + " is not an embeddings snapshot");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            if(header.getInt() != MAGIC) {
+                throw new IOException(filename + " is not an embeddings snapshot");
+            }
+            version = header.getInt();
+            if(version != VERSION && version != VERSION_WITHOUT_CODES) {
+                throw new IOException(filename + " is a version " + version + " snapshot; expected version " + VERSION);
+            }
+            dim = header.getInt();
+            size = header.getInt();
+            flags = header.getInt();
+            encoding = header.getInt();
+            nSlots = header.getInt();
+            header.getInt();
+            wordsOffset = header.getLong();
+            hashesOffset = header.getLong();
+            vectorsOffset = header.getLong();
+            long length = header.getLong();
+            if(channel.size() != length) {
+                throw new IOException(filename + " should be " + length + " bytes long, but is " + channel.size());
+            }
+            if(vectorsOffset > Integer.MAX_VALUE) {
+                throw new IOException("Vocabulary of " + filename + " is too large to map");
+            }
+            dict = channel.map(FileChannel.MapMode.READ_ONLY, 0, vectorsOffset).order(ByteOrder.LITTLE_ENDIAN);
+
+            MappedVectorStore mapped = new MappedVectorStore(filename, dim);
+            mapped.addRowsAt(vectorsOffset, size);
+            if((flags & NORMALIZED) != 0) {
+                mapped.markNormalized();
+            }
+            store = mapped;
+            // codes whose error bounds are too tight for the current dot product arithmetic are computed again
+            boolean codesUsable = version != VERSION_WITHOUT_CODES
+                    && ((flags & FLOAT_ACCUMULATION) != 0 || !WordEmbedding.FLOAT_ACCUMULATION);
+            if((flags & QUANTIZED) != 0 && codesUsable) {
+                store = readCodes(channel, mapped, QuantizedVectorStore.Encoding.values()[encoding], vectorsOffset + 4L * size * dim);
+            }
+        }
+
+        int capacity = Math.max(16, size);
+        int[] frequency = new int[capacity];
+        intsAt(dict, HEADER_BYTES).get(frequency, 0, size);
+        int[] wordOffsets = new int[size + 1];
+        intsAt(dict, HEADER_BYTES + 4L * size).get(wordOffsets);
+        int[] hashes = new int[capacity];
+        intsAt(dict, hashesOffset).get(hashes, 0, size);
+        int[] slots = new int[nSlots];
+        intsAt(dict, hashesOffset + 4L * size).get(slots);
+
+        String[] keys = new String[capacity];
+        Phrase[] terms = new Phrase[size];
+        int wordsStart = (int) wordsOffset;
+        Threading.parallelFor(size, (begin, end) -> {
+            ByteBuffer words = dict.duplicate();
+            byte[] bytes = new byte[64];
+            for(int i=begin; i<end; i++) {
+                int length = wordOffsets[i + 1] - wordOffsets[i];
+                if(length > bytes.length) bytes = new byte[Math.max(length, 2 * bytes.length)];
+                words.position(wordsStart + wordOffsets[i]);
+                words.get(bytes, 0, length);
+                keys[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+                terms[i] = Phrase.fromForm(keys[i]);
+            }
+        });
+
+        List<Phrase> termList = new ArrayList<>(Arrays.asList(terms));
+        Embeddings emb = new Embeddings(store, new PhraseIndex(keys, hashes, slots, size), termList, frequency);
+        if((flags & QUANTIZED) != 0 && !emb.isQuantized()) {
+            emb.quantize(QuantizedVectorStore.Encoding.values()[encoding]);
+        }
+        LOGGER.info("Loaded snapshot of " + size + " word vectors with " + dim + " dimensions");
+        return emb;
+    }
+
+    /**
+     * @return true if a file exists and starts like a snapshot
+     */
+    public static boolean isSnapshot(String filename) {
+        File file = new File(filename);
+        if(!file.isFile() || file.length() < HEADER_BYTES) return false;
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            return Integer.reverseBytes(in.readInt()) == MAGIC;
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Bytes taken by the scales, error bounds and codes of quantized rows
+     */
+    private static long codeBytes(QuantizedVectorStore.Encoding encoding, int size, int dim) {
+        if(encoding == QuantizedVectorStore.Encoding.INT8) {
+            return 8L * size + (long) size * dim;
+        } else {
+            return 4L * size + 2L * size * dim;
+        }
+    }
+
+    /**
+     * Write the scales (INT8 only), error bounds and codes of every row, in that order
+     */
+    private static void writeCodes(QuantizedVectorStore quantized, Output out) throws IOException {
+        int size = quantized.size();
+        int dim = quantized.dimensionality();
+        boolean int8 = quantized.encoding() == QuantizedVectorStore.Encoding.INT8;
+        if(int8) {
+            for(int i=0; i<size; i++) {
+                out.putFloat(quantized.scale(i));
+            }
+        }
+        for(int i=0; i<size; i++) {
+            out.putFloat(quantized.error(i));
+        }
+        int rowsPerBlock = quantized.rowsPerBlock();
+        for(int b=0; b * rowsPerBlock < size; b++) {
+            int values = Math.min(rowsPerBlock, size - b * rowsPerBlock) * dim;
+            if(int8) {
+                out.put(quantized.byteBlock(b), 0, values);
+            } else {
+                short[] block = quantized.halfBlock(b);
+                for(int j=0; j<values; j++) {
+                    out.putShort(block[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the scales, error bounds and codes written by writeCodes straight into a quantized store
+     */
+    private static QuantizedVectorStore readCodes(FileChannel channel, VectorStore full, QuantizedVectorStore.Encoding encoding,
+                                                  long codesOffset) throws IOException {
+        int size = full.size();
+        int dim = full.dimensionality();
+        boolean int8 = encoding == QuantizedVectorStore.Encoding.INT8;
+        long position = codesOffset;
+        float[] scales = new float[Math.max(16, size)];
+        if(int8) {
+            readFully(channel, position, 4 * size).asFloatBuffer().get(scales, 0, size);
+            position += 4L * size;
+        }
+        float[] errors = new float[Math.max(16, size)];
+        readFully(channel, position, 4 * size).asFloatBuffer().get(errors, 0, size);
+        position += 4L * size;
+        QuantizedVectorStore quantized = new QuantizedVectorStore(full, encoding, scales, errors);
+        int rowsPerBlock = quantized.rowsPerBlock();
+        for(int b=0; b * rowsPerBlock < size; b++) {
+            int values = Math.min(rowsPerBlock, size - b * rowsPerBlock) * dim;
+            if(int8) {
+                ByteBuffer block = ByteBuffer.wrap(quantized.byteBlock(b), 0, values);
+                readFully(channel, position, block);
+                position += values;
+            } else {
+                readFully(channel, position, 2 * values).asShortBuffer().get(quantized.halfBlock(b), 0, values);
+                position += 2L * values;
+            }
+        }
+        return quantized;
+    }
+
+    /**
+     * @return a little-endian buffer holding n bytes of a channel, starting at a given position
+     */
+    private static ByteBuffer readFully(FileChannel channel, long position, int n) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(n).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, position, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if(n < 0) {
+                throw new EOFException("Snapshot ends in the middle of its quantized codes");
+            }
+            position += n;
+        }
+    }
+
+    /**
+     * View of the ints of a buffer from a given position (without moving the buffer's own position)
+     */
+    private static IntBuffer intsAt(ByteBuffer buffer, long position) {
+        ByteBuffer view = buffer.duplicate().order(buffer.order());
+        view.position((int) position);
+        return view.asIntBuffer();
+    }
+
+    private static long align(long offset, int alignment) {
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * Little-endian output to a channel through one direct buffer
+     */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        private long position = 0;
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void ensure(int n) throws IOException {
+            if(buffer.remaining() < n) flush();
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(8);
+            buffer.putLong(value);
+            position += 8;
+        }
+
+        void putShort(short value) throws IOException {
+            ensure(2);
+            buffer.putShort(value);
+            position += 2;
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(4);
+            buffer.putFloat(value);
+            position += 4;
+        }
+
+        void put(byte[] bytes) throws IOException {
+            put(bytes, 0, bytes.length);
+        }
+
+        void put(byte[] bytes, int offset, int length) throws IOException {
+            for(int i=offset; i<offset+length; ) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), offset + length - i);
+                buffer.put(bytes, i, n);
+                i += n;
+                position += n;
+            }
+        }
+
+        void padTo(long offset) throws IOException {
+            while(position < offset) {
+                ensure(1);
+                buffer.put((byte) 0);
+                position++;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Convert an embeddings file to a normalized snapshot, for fast loading by later experiments
+     * Usage: EmbeddingsSnapshot embeddingsFile snapshotFile [gloveVocabFile]
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            System.out.println("Usage: EmbeddingsSnapshot embeddingsFile snapshotFile [gloveVocabFile]");
+            return;
+        }
+        Embeddings emb;
+        if(args.length > 2) {
+            emb = GloVeReader.readBinFile(args[0], args[2]);
+        } else if(TextVectorReader.isTextFile(args[0])) {
+            emb = TextVectorReader.readTextFile(args[0]);
+        } else {
+            emb = Word2vecReader.readBinFileParallel(args[0], 0, true);
+        }
+        emb.normalizeAll();
+        write(emb, args[1]);
+    }
+}
@@ -38,6 +38,9 @@ public class EmnlpAnalogyExperiment {
         boolean useW1W4 = Boolean.parseBoolean(props.getProperty("emnlpAnalogyUseW1W4"));
         boolean useAllRanks = Boolean.parseBoolean(props.getProperty("emnlpAnalogyUseRanks"));
         String vocabFilePath = props.getProperty("emnlpAnalogyVocabFile");
+        boolean mapVectors = Boolean.parseBoolean(props.getProperty("emnlpAnalogyMapVectors"));
+        String quantize = props.getProperty("emnlpAnalogyQuantize");
+        String hitsAtK = props.getProperty("emnlpAnalogyHitsAtK");
         Integer cutoff = null;
         try {
             cutoff = Integer.parseInt(props.getProperty("emnlpAnalogyVectorCutoff"));
@@ -48,13 +51,17 @@ public class EmnlpAnalogyExperiment {
                 .analogiesFile(analogiesFile)
                 .embeddingsFile(embeddingsFile)
                 .wordNetPath(wordNetPath)
-                .caseSensitive(caseSensitive);
+                .caseSensitive(caseSensitive)
+                .mapEmbeddings(mapVectors);
         if(cutoff != null)
             builder = builder.filterOn(cutoff);
 
         if(vocabFilePath != null)
             builder = builder.useGlove(vocabFilePath);
 
+        if(quantize != null)
+            builder = builder.quantize(QuantizedVectorStore.Encoding.valueOf(quantize.trim().toUpperCase()));
+
         AnalogyExperiment exp = builder.createExperiment();
 
         header = "analogy";
@@ -71,6 +78,20 @@ public class EmnlpAnalogyExperiment {
             parametersTested.add(exp.getAddRanks());
             parametersTested.add(exp.getMulRanks());
         }
+        if(hitsAtK != null) {
+            String[] fields = hitsAtK.trim().split("\\s*,\\s*");
+            int[] ks = new int[fields.length];
+            int maxK = 0;
+            for(int i=0; i<fields.length; i++) {
+                ks[i] = Integer.parseInt(fields[i]);
+                maxK = Math.max(maxK, ks[i]);
+            }
+            // exact ranks (if already scored) give the same hits; otherwise only score as far as the largest k
+            if(!useAllRanks) {
+                exp.scoreRanks(null, maxK);
+            }
+            exp.printHitsAtK(ks);
+        }
         if(useW3W4) {
             Map<Analogy, Double> analogyBaselineScores = exp.baselineSimilarity();
 
@@ -1,9 +1,10 @@
 import java.io.*;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Reads a vectors file as output by GloVe
@@ -24,6 +25,36 @@ public class GloVeReader {
      * @throws IOException
      */
     public static Embeddings readBinFile(String binFile, String vocabFile) throws IOException {
+        return readBinFile(binFile, vocabFile, null);
+    }
+
+    /**
+     * Reads vectors from a GloVe bin file, optionally building quantized copies of them
+     * The file is memory-mapped and read in parallel; each word's vector (plus its context vector, if addContextVector)
+     *      is written straight into the embeddings' storage and normalized there
+     * Quantization happens once the word and context vectors have been summed and normalized
+     * @param binFile
+     * @param vocabFile
+     * @param quantize the compact encoding to use for scans, or null for none
+     * @return
+     * @throws IOException
+     */
+    public static Embeddings readBinFile(String binFile, String vocabFile, QuantizedVectorStore.Encoding quantize) throws IOException {
+        return readBinFile(binFile, vocabFile, WordFilter.ALL, quantize);
+    }
+
+    /**
+     * Reads the vectors of only the words that pass a filter from a GloVe bin file
+     * Words are checked against the vocab file first, so the rows of other words are never read
+     * @param binFile
+     * @param vocabFile
+     * @param filter decides which words to keep (ranks are line numbers of the vocab file, from 0)
+     * @param quantize the compact encoding to use for scans, or null for none
+     * @return
+     * @throws IOException
+     */
+    public static Embeddings readBinFile(String binFile, String vocabFile, WordFilter filter,
+                                         QuantizedVectorStore.Encoding quantize) throws IOException {
 
         System.out.println("Reading GloVe vectors from file " + binFile + "...");
 
@@ -37,32 +68,84 @@ public class GloVeReader {
             frequencies.add(Integer.parseInt(fields[1]));
         }
         int nWords = vocab.size();
+        int[] rows = new int[nWords];
+        int nRows = 0;
+        StringBuilder form = new StringBuilder();
+        for(int i=0; i<nWords && !filter.done(i); i++) {
+            if(filter.accept(i, Phrase.formOf(vocab.get(i), false, form))) {
+                rows[nRows++] = i;
+            }
+        }
 
         // determine dimensionality by looking at input file: binfilesize_in_bytes = 8 * (dimensionality+1)*2
         //      bias term is written after each vector (the +1), and two sets of vectors are written (the *2)
         long nBytes = Paths.get(binFile).toFile().length();
         int dim = (int) (nBytes / 8 / 2 / nWords - 1);
 
-        Embeddings embeddings = new Embeddings(dim);
-        InputStream binReader = new FileInputStream(binFile);
-        for(int i=0; i<nWords*2; i++) {
-            byte[] bytes = new byte[dim*8+8];
-            binReader.read(bytes);
-            float[] vector = new float[dim];
-            for(int j=0; j<dim; j++) {
-                vector[j] = (float) ByteBuffer.wrap(bytes, j * 8, 8).order(ByteOrder.LITTLE_ENDIAN).getDouble();
-            }
-            if(i < nWords) {
-                Phrase phrase = new Phrase(vocab.get(i), "_");      // assume underscore delimiters if phrases are present
-                embeddings.addWordAndEmbedding(phrase, new WordEmbedding(vector));
-                embeddings.setWordFrequency(phrase, frequencies.get(i));
+        // words are added first, so that a word listed more than once gets a single row, as it always has:
+        //      the context vectors of all its entries are summed into it, and the frequency of its last entry is kept
+        HeapVectorStore store = new HeapVectorStore(dim, nRows);
+        Embeddings embeddings = new Embeddings(store);
+        int[] wordRows = new int[nRows];
+        Map<Integer, List<Integer>> extraContexts = new HashMap<>();
+        int nAdded = 0;
+        for(int r=0; r<nRows; r++) {
+            int i = rows[r];
+            Phrase phrase = new Phrase(vocab.get(i), "_");      // assume underscore delimiters if phrases are present
+            if(embeddings.addWord(phrase)) {
+                wordRows[nAdded] = i;
+                embeddings.setWordFrequency(nAdded, frequencies.get(i));
+                nAdded++;
             } else {
-                Phrase phrase = new Phrase(vocab.get(i-nWords), "_");
-                embeddings.get(phrase).add(new WordEmbedding(vector));
+                int index = embeddings.indexOf(phrase);
+                extraContexts.computeIfAbsent(index, k -> new ArrayList<>()).add(i);
+                embeddings.setWordFrequency(index, frequencies.get(i));
+            }
+        }
+
+        long rowBytes = 8L * (dim + 1);
+        ByteBuffer[] segments = MappedVectorStore.map(binFile, rowBytes);
+        int nKept = nAdded;
+        store.addRows(nKept);
+        int rowsPerBlock = store.rowsPerBlock();
+        // word vector i and its context vector are nWords rows apart, so each row of the store is read and written once
+        Threading.parallelFor(nKept, (begin, end) -> {
+            for(int r=begin; r<end; r++) {
+                float[] block = store.block(r / rowsPerBlock);
+                int offset = (r % rowsPerBlock) * dim;
+                readRow(segments, (long) wordRows[r] * rowBytes, dim, block, offset, false);
+                if(addContextVector) {
+                    readRow(segments, (wordRows[r] + (long) nWords) * rowBytes, dim, block, offset, true);
+                    List<Integer> extra = extraContexts.get(r);
+                    if(extra != null) {
+                        for(int i : extra) {
+                            readRow(segments, (i + (long) nWords) * rowBytes, dim, block, offset, true);
+                        }
+                    }
+                }
             }
+            store.normalizeRows(begin, end);
+        });
+        store.markNormalized();
+        if(quantize != null) {
+            embeddings.quantize(quantize);
         }
-        embeddings.normalizeAll();
-        System.out.println("read " + nWords + " embeddings with " + dim + " dimensions");
+        System.out.println("read " + embeddings.size() + " embeddings with " + dim + " dimensions");
         return embeddings;
     }
+
+    /**
+     * Read a row of little-endian doubles as floats, or add them to floats already there
+     */
+    private static void readRow(ByteBuffer[] segments, long position, int dim, float[] dest, int offset, boolean add) {
+        ByteBuffer segment = segments[(int) (position / MappedVectorStore.SEGMENT_SIZE)];
+        int p = (int) (position % MappedVectorStore.SEGMENT_SIZE);
+        for(int j=0; j<dim; j++, p += 8) {
+            if(add) {
+                dest[offset + j] += (float) segment.getDouble(p);
+            } else {
+                dest[offset + j] = (float) segment.getDouble(p);
+            }
+        }
+    }
 }
@@ -0,0 +1,183 @@
+import java.util.Arrays;
+
+/**
+ * Row-major storage of all vectors in a few large float arrays
+ * Rows never straddle two blocks, so scans can run over each block as one contiguous array
+ */
+public class HeapVectorStore extends VectorStore {
+
+    // keep every block well below the maximum array length
+    private static final int MAX_BLOCK_FLOATS = 1 << 26;
+
+    private final int dimensionality;
+    private final int rowsPerBlock;
+    private float[][] blocks;
+    private int size;
+
+    public HeapVectorStore(int dimensionality) {
+        this(dimensionality, 0);
+    }
+
+    /**
+     * @param dimensionality length of every vector
+     * @param expectedRows number of rows to allocate space for up front (more can still be added)
+     */
+    public HeapVectorStore(int dimensionality, int expectedRows) {
+        this.dimensionality = dimensionality;
+        rowsPerBlock = Math.max(1, MAX_BLOCK_FLOATS / Math.max(1, dimensionality));
+        int nBlocks = Math.max(1, (expectedRows + rowsPerBlock - 1) / rowsPerBlock);
+        blocks = new float[nBlocks][];
+        for(int b=0; b<nBlocks; b++) {
+            int rows = Math.max(16, Math.min(rowsPerBlock, expectedRows - b * rowsPerBlock));
+            blocks[b] = new float[rows * dimensionality];
+        }
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    public int rowsPerBlock() {
+        return rowsPerBlock;
+    }
+
+    /**
+     * Get the array holding a block of rows. Row i lives in block i / rowsPerBlock(),
+     *      starting at index (i % rowsPerBlock()) * dimensionality()
+     * @param b the block number
+     * @return the backing array (not a copy)
+     */
+    public float[] block(int b) {
+        return blocks[b];
+    }
+
+    @Override
+    public void add(float[] vector) {
+        if(vector.length != dimensionality) {
+            throw new IllegalArgumentException("Expected vector of length " + dimensionality + ", got " + vector.length);
+        }
+        add(vector, 0);
+    }
+
+    /**
+     * Append one row copied out of a larger array (such as several rows packed together)
+     * @param rows the array holding the row
+     * @param rowOffset index of the row's first value in rows
+     */
+    public void add(float[] rows, int rowOffset) {
+        int b = size / rowsPerBlock;
+        int offset = (size % rowsPerBlock) * dimensionality;
+        ensureCapacity(b, offset + dimensionality);
+        System.arraycopy(rows, rowOffset, blocks[b], offset, dimensionality);
+        size++;
+        invalidateNorm(size - 1);
+    }
+
+    private void ensureCapacity(int b, int length) {
+        if(b >= blocks.length) {
+            blocks = Arrays.copyOf(blocks, b + 1);
+        }
+        if(blocks[b] == null) {
+            blocks[b] = new float[Math.max(16 * dimensionality, length)];
+        } else if(blocks[b].length < length) {
+            int newLength = (int) Math.min((long) rowsPerBlock * dimensionality, 2L * blocks[b].length);
+            blocks[b] = Arrays.copyOf(blocks[b], Math.max(newLength, length));
+        }
+    }
+
+    @Override
+    public WordEmbedding row(int i) {
+        return WordEmbedding.view(blocks[i / rowsPerBlock], (i % rowsPerBlock) * dimensionality, dimensionality, this, i);
+    }
+
+    @Override
+    public void copyRows(int begin, int end, float[] dest, int destOffset) {
+        int i = begin;
+        while(i < end) {
+            int b = i / rowsPerBlock;
+            int blockEnd = Math.min(end, (b + 1) * rowsPerBlock);
+            System.arraycopy(blocks[b], (i % rowsPerBlock) * dimensionality,
+                    dest, destOffset + (i - begin) * dimensionality, (blockEnd - i) * dimensionality);
+            i = blockEnd;
+        }
+    }
+
+    /**
+     * Append rows of zeros, to be filled in afterward with copyRowsFrom
+     * @param n the number of rows to add
+     */
+    public void addRows(int n) {
+        if(n <= 0) return;
+        int last = size + n - 1;
+        for(int b = size / rowsPerBlock; b <= last / rowsPerBlock; b++) {
+            int rowsInBlock = b < last / rowsPerBlock ? rowsPerBlock : last % rowsPerBlock + 1;
+            ensureCapacity(b, rowsInBlock * dimensionality);
+        }
+        int begin = size;
+        size += n;
+        invalidateNorms(begin, size);
+    }
+
+    /**
+     * Overwrite a range of rows with rows of another store. Can be called for different ranges from several threads at once
+     * @param source the store to copy from
+     * @param begin the first row (inclusive) to copy; rows keep the same index
+     * @param end the last row (exclusive)
+     */
+    public void copyRowsFrom(VectorStore source, int begin, int end) {
+        int i = begin;
+        while(i < end) {
+            int b = i / rowsPerBlock;
+            int blockEnd = Math.min(end, (b + 1) * rowsPerBlock);
+            source.copyRows(i, blockEnd, blocks[b], (i % rowsPerBlock) * dimensionality);
+            i = blockEnd;
+        }
+        invalidateNorms(begin, end);
+    }
+
+    @Override
+    public double dot(int i, WordEmbedding emb) {
+        return emb.dot(blocks[i / rowsPerBlock], (i % rowsPerBlock) * dimensionality);
+    }
+
+    @Override
+    public void dotRange(WordEmbedding emb, double[] results, int begin, int end) {
+        int i = begin;
+        while(i < end) {
+            int b = i / rowsPerBlock;
+            float[] block = blocks[b];
+            int blockEnd = Math.min(end, (b + 1) * rowsPerBlock);
+            for(int offset = (i % rowsPerBlock) * dimensionality; i < blockEnd; i++, offset += dimensionality) {
+                results[i] = emb.dot(block, offset);
+            }
+        }
+    }
+
+    @Override
+    protected void normalizeRows(int begin, int end) {
+        for(int i=begin; i<end; i++) {
+            WordEmbedding.view(blocks[i / rowsPerBlock], (i % rowsPerBlock) * dimensionality, dimensionality).normalize();
+        }
+    }
+
+    @Override
+    public void retain(int[] keep) {
+        for(int j=0; j<keep.length; j++) {
+            int i = keep[j];
+            if(i != j) {
+                System.arraycopy(blocks[i / rowsPerBlock], (i % rowsPerBlock) * dimensionality,
+                        blocks[j / rowsPerBlock], (j % rowsPerBlock) * dimensionality, dimensionality);
+            }
+        }
+        size = keep.length;
+        retainNorms(keep);
+        int nBlocks = Math.max(1, (size + rowsPerBlock - 1) / rowsPerBlock);
+        blocks = Arrays.copyOf(blocks, nBlocks);
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * Hierarchical Navigable Small World graph (Malkov & Yashunin, 2016) for approximate nearest-neighbor search
+ * Similarity is the dot product, so the embeddings should already be normalized (as for Embeddings.getTopNSimilar)
+ * Scores in search results are exact dot products; only the set of neighbors found is approximate
+ *
+ * Parameters:
+ *      m                   number of links per node on the upper levels (2*m on the bottom level)
+ *      efConstruction      size of the candidate list while building; higher is slower to build but more accurate
+ *      efSearch            size of the candidate list while searching; higher is slower but more accurate
+ */
+public class HnswIndex {
+
+    private final static Logger LOGGER = Logger.getLogger(HnswIndex.class.getName());
+
+    // "HNSW"
+    private static final int MAGIC = 0x484e5357;
+
+    private final Embeddings emb;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private int efSearch;
+
+    private final int[] levels;
+    // bottom-level links of node i start at i * (maxM0 + 1): a count followed by the neighbors' indices
+    private final int[] links0;
+    // links of node i for levels 1 through levels[i], each level (m + 1) ints long in the same layout
+    private final int[][] upperLinks;
+    private int entryPoint;
+    private int maxLevel;
+
+    // link lists are only locked while the graph is being built
+    private volatile boolean building = false;
+    private final Object[] locks;
+    private final Object entryLock = new Object();
+
+    private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private HnswIndex(Embeddings emb, int m, int efConstruction, int efSearch, int[] levels) {
+        this.emb = emb;
+        this.m = m;
+        this.maxM0 = 2 * m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.levels = levels;
+        int n = levels.length;
+        links0 = new int[n * (maxM0 + 1)];
+        upperLinks = new int[n][];
+        for(int i=0; i<n; i++) {
+            if(levels[i] > 0) {
+                upperLinks[i] = new int[levels[i] * (m + 1)];
+            }
+        }
+        locks = new Object[1 << 12];
+        for(int i=0; i<locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Build an index over every embedding, using Threading's thread count
+     * @param emb the embeddings to index (should be normalized)
+     * @param m links per node (16 is a reasonable default)
+     * @param efConstruction candidate list size while building (e.g. 200)
+     * @param efSearch default candidate list size while searching (e.g. 50); always at least the number of results
+     * @return the index
+     */
+    public static HnswIndex build(Embeddings emb, int m, int efConstruction, int efSearch) {
+        LOGGER.info("Building HNSW index over " + emb.size() + " embeddings...");
+        int n = emb.size();
+        int[] levels = new int[n];
+        Random random = new Random(1);
+        double levelMultiplier = 1 / Math.log(Math.max(2, m));
+        for(int i=0; i<n; i++) {
+            levels[i] = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+        }
+        HnswIndex index = new HnswIndex(emb, m, efConstruction, efSearch, levels);
+        // the first node is the initial entry point; everything else is inserted starting from it
+        index.entryPoint = 0;
+        index.maxLevel = n == 0 ? 0 : levels[0];
+        index.building = true;
+        Threading.parallelFor(n, (begin, end) -> {
+            for(int i = Math.max(begin, 1); i < end; i++) {
+                index.insert(i);
+            }
+        });
+        index.building = false;
+        LOGGER.info("Built HNSW index with " + (index.maxLevel + 1) + " levels");
+        return index;
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    /**
+     * Number of embeddings covered by this index
+     */
+    public int size() {
+        return levels.length;
+    }
+
+    /**
+     * Find (approximately) the k embeddings with the highest dot product with a query
+     * @param query a vector of the same dimensionality as the embeddings
+     * @param k the number of results wanted
+     * @return up to k results, most similar first
+     */
+    public SearchResult search(WordEmbedding query, int k) {
+        if(levels.length == 0 || k <= 0) {
+            return new SearchResult(new int[0], new double[0]);
+        }
+        Scratch s = scratch.get();
+        int current = entryPoint;
+        for(int level = maxLevel; level > 0; level--) {
+            current = greedyClosest(query, current, level, s);
+        }
+        double currentSim = emb.dot(current, query);
+        MinHeap results = s.results;
+        searchLayer(query, current, currentSim, Math.max(efSearch, k), 0, s);
+        int count = Math.min(k, results.size());
+        while(results.size() > count) {
+            results.pop();
+        }
+        int[] ids = new int[count];
+        double[] scores = new double[count];
+        for(int i=count-1; i>=0; i--) {
+            scores[i] = results.peekScore();
+            ids[i] = results.pop();
+        }
+        return new SearchResult(ids, scores);
+    }
+
+    private void insert(int node) {
+        int level = levels[node];
+        int entry;
+        int top;
+        synchronized (entryLock) {
+            entry = entryPoint;
+            top = maxLevel;
+        }
+        if(level > top) {
+            // nodes that will become the new entry point are linked in one at a time
+            synchronized (entryLock) {
+                link(node, level, entryPoint, maxLevel);
+                if(level > maxLevel) {
+                    entryPoint = node;
+                    maxLevel = level;
+                }
+            }
+        } else {
+            link(node, level, entry, top);
+        }
+    }
+
+    private void link(int node, int level, int entry, int top) {
+        Scratch s = scratch.get();
+        WordEmbedding query = emb.get(node);
+        int current = entry;
+        for(int l = top; l > level; l--) {
+            current = greedyClosest(query, current, l, s);
+        }
+        double currentSim = emb.dot(current, query);
+        for(int l = Math.min(level, top); l >= 0; l--) {
+            searchLayer(query, current, currentSim, efConstruction, l, s);
+            int count = s.results.size();
+            s.ensureCandidateCapacity(count);
+            for(int i=count-1; i>=0; i--) {
+                s.candidateSims[i] = s.results.peekScore();
+                s.candidateIds[i] = s.results.pop();
+            }
+            current = s.candidateIds[0];
+            currentSim = s.candidateSims[0];
+            // another thread may have linked this node in already, in which case the search can find it
+            int kept = 0;
+            for(int i=0; i<count; i++) {
+                if(s.candidateIds[i] != node) {
+                    s.candidateIds[kept] = s.candidateIds[i];
+                    s.candidateSims[kept++] = s.candidateSims[i];
+                }
+            }
+            count = kept;
+
+            int maxLinks = l == 0 ? maxM0 : m;
+            int nSelected = selectNeighbors(s.candidateIds, s.candidateSims, count, m, s.selected);
+            // other threads may already have linked to this node from above, so add links rather than overwrite
+            for(int i=0; i<nSelected; i++) {
+                addLink(node, l, s.selected[i], maxLinks);
+                addLink(s.selected[i], l, node, maxLinks);
+            }
+        }
+    }
+
+    /**
+     * Add a link from one node to another, pruning the first node's links if it has too many
+     */
+    private void addLink(int from, int level, int to, int maxLinks) {
+        synchronized (lock(from)) {
+            int[] links = links(from, level);
+            int offset = linkOffset(from, level);
+            int count = links[offset];
+            if(count < maxLinks) {
+                links[offset + 1 + count] = to;
+                links[offset] = count + 1;
+                return;
+            }
+            WordEmbedding base = emb.get(from);
+            int[] ids = new int[count + 1];
+            double[] sims = new double[count + 1];
+            System.arraycopy(links, offset + 1, ids, 0, count);
+            ids[count] = to;
+            for(int i=0; i<=count; i++) {
+                sims[i] = emb.dot(ids[i], base);
+            }
+            sortDescending(ids, sims, count + 1);
+            int[] selected = new int[maxLinks];
+            int nSelected = selectNeighbors(ids, sims, count + 1, maxLinks, selected);
+            links[offset] = nSelected;
+            System.arraycopy(selected, 0, links, offset + 1, nSelected);
+        }
+    }
+
+    /**
+     * Neighbor selection heuristic: keep a candidate only if it is closer to the base node than to any
+     *      neighbor already kept, which favors links in diverse directions
+     * @param ids candidates, sorted by decreasing similarity to the base node
+     * @param sims the candidates' similarities to the base node
+     * @param count number of candidates
+     * @param max maximum number to select
+     * @param selected array to write the selected indices to
+     * @return the number selected
+     */
+    private int selectNeighbors(int[] ids, double[] sims, int count, int max, int[] selected) {
+        int nSelected = 0;
+        for(int i=0; i<count && nSelected < max; i++) {
+            WordEmbedding candidate = emb.get(ids[i]);
+            boolean keep = true;
+            for(int j=0; j<nSelected; j++) {
+                if(emb.dot(selected[j], candidate) > sims[i]) {
+                    keep = false;
+                    break;
+                }
+            }
+            if(keep) {
+                selected[nSelected++] = ids[i];
+            }
+        }
+        return nSelected;
+    }
+
+    private int greedyClosest(WordEmbedding query, int current, int level, Scratch s) {
+        double currentSim = emb.dot(current, query);
+        boolean changed = true;
+        while(changed) {
+            changed = false;
+            int count = readLinks(current, level, s.neighbors);
+            for(int i=0; i<count; i++) {
+                int neighbor = s.neighbors[i];
+                double sim = emb.dot(neighbor, query);
+                if(sim > currentSim) {
+                    current = neighbor;
+                    currentSim = sim;
+                    changed = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Best-first search of one level; the ef closest nodes found are left in s.results
+     */
+    private void searchLayer(WordEmbedding query, int entry, double entrySim, int ef, int level, Scratch s) {
+        s.newVisit();
+        s.visit(entry);
+        MinHeap candidates = s.candidates;
+        MinHeap results = s.results;
+        candidates.clear();
+        results.clear();
+        // candidates are ordered closest-first by negating their similarity
+        candidates.push(entry, -entrySim);
+        results.push(entry, entrySim);
+        while(candidates.size() > 0) {
+            double candidateSim = -candidates.peekScore();
+            int candidate = candidates.pop();
+            if(results.size() >= ef && candidateSim < results.peekScore()) {
+                break;
+            }
+            int count = readLinks(candidate, level, s.neighbors);
+            for(int i=0; i<count; i++) {
+                int neighbor = s.neighbors[i];
+                if(s.visited(neighbor)) continue;
+                s.visit(neighbor);
+                double sim = emb.dot(neighbor, query);
+                if(results.size() < ef || sim > results.peekScore()) {
+                    candidates.push(neighbor, -sim);
+                    results.push(neighbor, sim);
+                    if(results.size() > ef) {
+                        results.pop();
+                    }
+                }
+            }
+        }
+    }
+
+    private int readLinks(int node, int level, int[] dest) {
+        int[] links = links(node, level);
+        int offset = linkOffset(node, level);
+        if(building) {
+            synchronized (lock(node)) {
+                int count = links[offset];
+                System.arraycopy(links, offset + 1, dest, 0, count);
+                return count;
+            }
+        }
+        int count = links[offset];
+        System.arraycopy(links, offset + 1, dest, 0, count);
+        return count;
+    }
+
+    private int[] links(int node, int level) {
+        return level == 0 ? links0 : upperLinks[node];
+    }
+
+    private int linkOffset(int node, int level) {
+        return level == 0 ? node * (maxM0 + 1) : (level - 1) * (m + 1);
+    }
+
+    private Object lock(int node) {
+        return locks[node & (locks.length - 1)];
+    }
+
+    private static void sortDescending(int[] ids, double[] sims, int count) {
+        for(int i=1; i<count; i++) {
+            int id = ids[i];
+            double sim = sims[i];
+            int j = i - 1;
+            while(j >= 0 && sims[j] < sim) {
+                ids[j + 1] = ids[j];
+                sims[j + 1] = sims[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            sims[j + 1] = sim;
+        }
+    }
+
+    /**
+     * Write the graph to a file. The embeddings themselves are not written
+     * @param filename the file to write
+     * @throws IOException
+     */
+    public void save(String filename) throws IOException {
+        try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(levels.length);
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(efSearch);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for(int level : levels) {
+                out.writeInt(level);
+            }
+            for(int i=0; i<levels.length; i++) {
+                writeLinks(out, links0, i * (maxM0 + 1));
+                for(int level=1; level<=levels[i]; level++) {
+                    writeLinks(out, upperLinks[i], (level - 1) * (m + 1));
+                }
+            }
+        }
+    }
+
+    private static void writeLinks(DataOutputStream out, int[] links, int offset) throws IOException {
+        int count = links[offset];
+        out.writeInt(count);
+        for(int i=1; i<=count; i++) {
+            out.writeInt(links[offset + i]);
+        }
+    }
+
+    /**
+     * Read a graph written by save()
+     * @param filename the file to read
+     * @param emb the same embeddings the index was built over
+     * @return the index
+     * @throws IOException if the file isn't an index over these embeddings or is damaged
+     */
+    public static HnswIndex load(String filename, Embeddings emb) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException(filename + " is not an HNSW index file");
+            }
+            int n = in.readInt();
+            if(n != emb.size()) {
+                throw new IOException("Index in " + filename + " covers " + n + " embeddings, but there are " + emb.size());
+            }
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int efSearch = in.readInt();
+            int entryPoint = in.readInt();
+            int maxLevel = in.readInt();
+            if(m < 1 || maxLevel < 0 || n > 0 && (entryPoint < 0 || entryPoint >= n)) {
+                throw new IOException("Corrupt header in HNSW index file " + filename);
+            }
+            int[] levels = new int[n];
+            for(int i=0; i<n; i++) {
+                levels[i] = in.readInt();
+                // checked before the constructor allocates levels[i] link lists
+                if(levels[i] < 0 || levels[i] > maxLevel) {
+                    throw new IOException("Corrupt level " + levels[i] + " for node " + i + " in " + filename);
+                }
+            }
+            HnswIndex index = new HnswIndex(emb, m, efConstruction, efSearch, levels);
+            index.entryPoint = entryPoint;
+            index.maxLevel = maxLevel;
+            for(int i=0; i<n; i++) {
+                readLinks(in, index.links0, i * (index.maxM0 + 1), index.maxM0, n, filename);
+                for(int level=1; level<=levels[i]; level++) {
+                    readLinks(in, index.upperLinks[i], (level - 1) * (m + 1), m, n, filename);
+                }
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Read one link list, checking it against the list's capacity and the number of nodes
+     */
+    private static void readLinks(DataInputStream in, int[] links, int offset, int maxLinks, int n, String filename) throws IOException {
+        int count = in.readInt();
+        if(count < 0 || count > maxLinks) {
+            throw new IOException("Corrupt neighbor count " + count + " (at most " + maxLinks + ") in " + filename);
+        }
+        links[offset] = count;
+        for(int i=1; i<=count; i++) {
+            int neighbor = in.readInt();
+            if(neighbor < 0 || neighbor >= n) {
+                throw new IOException("Corrupt neighbor " + neighbor + " in " + filename);
+            }
+            links[offset + i] = neighbor;
+        }
+    }
+
+    /**
+     * Per-thread working memory for searches
+     */
+    private class Scratch {
+        final MinHeap candidates = new MinHeap();
+        final MinHeap results = new MinHeap();
+        final int[] neighbors = new int[Math.max(maxM0, m) + 1];
+        final int[] selected = new int[Math.max(maxM0, m) + 1];
+        int[] candidateIds = new int[16];
+        double[] candidateSims = new double[16];
+        // a node has been visited in the current search if its mark equals the current tag
+        final int[] marks = new int[levels.length];
+        int tag = 0;
+
+        void newVisit() {
+            tag++;
+            if(tag == Integer.MAX_VALUE) {
+                Arrays.fill(marks, 0);
+                tag = 1;
+            }
+        }
+        boolean visited(int node) {
+            return marks[node] == tag;
+        }
+        void visit(int node) {
+            marks[node] = tag;
+        }
+        void ensureCandidateCapacity(int count) {
+            if(candidateIds.length < count) {
+                candidateIds = new int[count];
+                candidateSims = new double[count];
+            }
+        }
+    }
+
+    /**
+     * Binary min-heap of (index, score) pairs, ordered by score
+     */
+    private static class MinHeap {
+        private int[] ids = new int[64];
+        private double[] scores = new double[64];
+        private int size = 0;
+
+        int size() {
+            return size;
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        double peekScore() {
+            return scores[0];
+        }
+
+        void push(int id, double score) {
+            if(size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int k = size++;
+            while(k > 0) {
+                int parent = (k - 1) / 2;
+                if(scores[parent] <= score) break;
+                ids[k] = ids[parent];
+                scores[k] = scores[parent];
+                k = parent;
+            }
+            ids[k] = id;
+            scores[k] = score;
+        }
+
+        int pop() {
+            int top = ids[0];
+            size--;
+            int id = ids[size];
+            double score = scores[size];
+            int k = 0;
+            while(true) {
+                int child = 2 * k + 1;
+                if(child >= size) break;
+                if(child + 1 < size && scores[child + 1] < scores[child]) child++;
+                if(scores[child] >= score) break;
+                ids[k] = ids[child];
+                scores[k] = scores[child];
+                k = child;
+            }
+            ids[k] = id;
+            scores[k] = score;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only vector storage that reads each row from a file the first time it is needed
+ * Rows are fetched by positional reads and kept in a bounded least-recently-used cache, so memory use grows
+ *      with the number of words actually looked up rather than with the vocabulary. Meant for jobs that touch few words;
+ *      scans over the whole vocabulary work, but read the whole file
+ * Normalization is applied to rows as they are read, since the file itself can't be changed
+ */
+public class LazyVectorStore extends VectorStore implements Closeable {
+
+    private final int dimensionality;
+    private final FileChannel channel;
+    private long[] rowOffsets;
+    private int size;
+    private volatile boolean normalizeOnRead = false;
+    private final Map<Integer, float[]> cache;
+
+    /**
+     * @param filename the file containing the vectors (little-endian floats)
+     * @param dimensionality the length of every vector
+     * @param rowOffsets byte offset of the first float of each row
+     * @param cacheRows the most rows to keep in memory at once
+     * @throws IOException
+     */
+    public LazyVectorStore(String filename, int dimensionality, long[] rowOffsets, int cacheRows) throws IOException {
+        this.dimensionality = dimensionality;
+        this.rowOffsets = rowOffsets;
+        size = rowOffsets.length;
+        channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        cache = new LinkedHashMap<Integer, float[]>(16, .75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, float[]> eldest) {
+                return size() > cacheRows;
+            }
+        };
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(float[] vector) {
+        throw new UnsupportedOperationException("Lazily read vectors are read-only");
+    }
+
+    /**
+     * Get a row from the cache, reading it from the file if it isn't there. The array must not be changed
+     */
+    private float[] fetch(int i) {
+        synchronized(cache) {
+            float[] row = cache.get(i);
+            if(row != null) return row;
+        }
+        // read outside the lock so that threads can read different rows at once
+        boolean normalize = normalizeOnRead;
+        float[] row = read(i, normalize);
+        synchronized(cache) {
+            // don't cache a row read before normalization was switched on
+            if(normalize == normalizeOnRead) cache.put(i, row);
+        }
+        return row;
+    }
+
+    private float[] read(int i, boolean normalize) {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * dimensionality).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = rowOffsets[i];
+        try {
+            while(buffer.hasRemaining()) {
+                if(channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("File ended in the middle of vector " + i);
+                }
+            }
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        buffer.flip();
+        float[] row = new float[dimensionality];
+        buffer.asFloatBuffer().get(row);
+        if(normalize) {
+            double sqsum = 0;
+            for(float x : row) {
+                sqsum += (double) x * x;
+            }
+            float scale = sqsum == 0 ? 1f : (float) (1 / Math.sqrt(sqsum));
+            for(int j=0; j<dimensionality; j++) {
+                row[j] *= scale;
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Rows of a lazy store are read-only, so this returns a copy of the row
+     * @param i the row index
+     * @return a new WordEmbedding holding the row's values
+     */
+    @Override
+    public WordEmbedding row(int i) {
+        return new WordEmbedding(fetch(i).clone());
+    }
+
+    @Override
+    public void copyRows(int begin, int end, float[] dest, int destOffset) {
+        for(int i=begin; i<end; i++, destOffset += dimensionality) {
+            System.arraycopy(fetch(i), 0, dest, destOffset, dimensionality);
+        }
+    }
+
+    @Override
+    public double dot(int i, WordEmbedding emb) {
+        return emb.dot(fetch(i), 0);
+    }
+
+    /**
+     * Normalize without reading anything: rows are scaled to unit length as they are read from now on
+     */
+    @Override
+    public void normalizeRows() {
+        if(isNormalized()) return;
+        normalizeRows(0, size);
+        markNormalized();
+    }
+
+    /**
+     * Scaling on read can only be switched on for the whole file, so every row read from now on is normalized,
+     *      not only those in the range
+     */
+    @Override
+    protected void normalizeRows(int begin, int end) {
+        synchronized(cache) {
+            normalizeOnRead = true;
+            cache.clear();
+        }
+    }
+
+    @Override
+    public void retain(int[] keep) {
+        for(int j=0; j<keep.length; j++) {
+            rowOffsets[j] = rowOffsets[keep[j]];
+        }
+        size = keep.length;
+        synchronized(cache) {
+            cache.clear();
+        }
+        retainNorms(keep);
+    }
+
+    /**
+     * Close the file. The store can't be used afterward
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Read-only vector storage that reads little-endian floats directly out of a memory-mapped file
+ * Vectors are never copied onto the heap for scans, and processes mapping the same file share the page cache
+ * Rows may sit anywhere in the file (e.g. interleaved with words, as in word2vec's binary format)
+ * Normalization is done with a per-row scale factor, since the mapped data itself can't be changed
+ */
+public class MappedVectorStore extends VectorStore {
+
+    // MappedByteBuffers are limited to 2GB, so large files are mapped in several overlapping segments
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final int dimensionality;
+    private final ByteBuffer[] segments;
+    private long[] rowOffsets;
+    private float[] scale = null;
+    private int size;
+
+    /**
+     * Map a file. Rows are added afterward by calling addRowAt with the byte offset of each vector
+     * @param filename the file containing the vectors
+     * @param dimensionality the length of every vector
+     * @throws IOException
+     */
+    public MappedVectorStore(String filename, int dimensionality) throws IOException {
+        this.dimensionality = dimensionality;
+        segments = map(filename, 4L * dimensionality);
+        rowOffsets = new long[16];
+    }
+
+    /**
+     * Map a whole file as little-endian buffers of SEGMENT_SIZE bytes (plus one row of overlap)
+     * The byte at offset x of the file is at position x % SEGMENT_SIZE of segment x / SEGMENT_SIZE
+     * @param filename the file to map
+     * @param rowBytes the length of the longest row that must be readable from a single segment
+     * @return the segments
+     * @throws IOException
+     */
+    static ByteBuffer[] map(String filename, long rowBytes) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(filename, "r");
+             FileChannel channel = file.getChannel()) {
+            long length = channel.size();
+            int nSegments = (int) Math.max(1, (length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            ByteBuffer[] segments = new ByteBuffer[nSegments];
+            for(int s=0; s<nSegments; s++) {
+                long start = s * SEGMENT_SIZE;
+                // overlap by one row so that any row beginning in this segment ends in it too
+                long segmentLength = Math.min(length - start, SEGMENT_SIZE + rowBytes);
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, start, segmentLength);
+                segment.order(ByteOrder.LITTLE_ENDIAN);
+                segments[s] = segment;
+            }
+            return segments;
+        }
+    }
+
+    /**
+     * Register the vector beginning at a given position in the file as the next row
+     * @param offset the byte offset of the first float of the vector
+     */
+    public void addRowAt(long offset) {
+        if(size == rowOffsets.length) {
+            rowOffsets = Arrays.copyOf(rowOffsets, size * 2);
+        }
+        if(scale != null) {
+            // an unnormalized row among normalized ones
+            if(size >= scale.length) scale = Arrays.copyOf(scale, rowOffsets.length);
+            scale[size] = 1f;
+        }
+        rowOffsets[size++] = offset;
+        invalidateNorm(size - 1);
+    }
+
+    /**
+     * Register vectors stored back to back, beginning at a given position in the file, as the next rows
+     * @param offset the byte offset of the first float of the first vector
+     * @param n the number of vectors
+     */
+    public void addRowsAt(long offset, int n) {
+        if(size + n > rowOffsets.length) {
+            rowOffsets = Arrays.copyOf(rowOffsets, Math.max(size + n, rowOffsets.length * 2));
+        }
+        if(scale != null) {
+            scale = Arrays.copyOf(scale, rowOffsets.length);
+            Arrays.fill(scale, size, size + n, 1f);
+        }
+        long rowBytes = 4L * dimensionality;
+        for(int i=0; i<n; i++) {
+            rowOffsets[size + i] = offset + i * rowBytes;
+        }
+        int begin = size;
+        size += n;
+        invalidateNorms(begin, size);
+    }
+
+    /**
+     * Read a single byte of the mapped file (for parsing the non-vector contents of the file)
+     * @param offset a byte offset into the file
+     * @return the byte at that offset
+     */
+    public byte getByte(long offset) {
+        return segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE));
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(float[] vector) {
+        throw new UnsupportedOperationException("Memory-mapped vectors are read-only");
+    }
+
+    /**
+     * Rows of a mapped store are read-only, so this returns a copy of the row
+     * @param i the row index
+     * @return a new WordEmbedding holding the row's values
+     */
+    @Override
+    public WordEmbedding row(int i) {
+        long offset = rowOffsets[i];
+        ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+        float rowScale = scale == null ? 1f : scale[i];
+        float[] vector = new float[dimensionality];
+        for(int j=0; j<dimensionality; j++, position += 4) {
+            vector[j] = segment.getFloat(position) * rowScale;
+        }
+        return new WordEmbedding(vector);
+    }
+
+    @Override
+    public void copyRows(int begin, int end, float[] dest, int destOffset) {
+        for(int i=begin; i<end; i++, destOffset += dimensionality) {
+            long offset = rowOffsets[i];
+            // a duplicate has its own position, so several threads can copy at once
+            ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            segment.position((int) (offset % SEGMENT_SIZE));
+            segment.asFloatBuffer().get(dest, destOffset, dimensionality);
+            if(scale != null) {
+                for(int j=destOffset; j<destOffset+dimensionality; j++) {
+                    dest[j] *= scale[i];
+                }
+            }
+        }
+    }
+
+    @Override
+    public double dot(int i, WordEmbedding emb) {
+        long offset = rowOffsets[i];
+        double dot = emb.dot(segments[(int) (offset / SEGMENT_SIZE)], (int) (offset % SEGMENT_SIZE));
+        return scale == null ? dot : dot * scale[i];
+    }
+
+    /**
+     * Normalize without touching the file by recording the inverse magnitude of each row
+     */
+    @Override
+    protected void normalizeRows(int begin, int end) {
+        float[] scale = scales();
+        for(int i=begin; i<end; i++) {
+            long offset = rowOffsets[i];
+            ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+            int position = (int) (offset % SEGMENT_SIZE);
+            double sqsum = 0;
+            for(int j=0; j<dimensionality; j++, position += 4) {
+                double x = segment.getFloat(position);
+                sqsum += x * x;
+            }
+            scale[i] = sqsum == 0 ? 1f : (float) (1 / Math.sqrt(sqsum));
+        }
+    }
+
+    /**
+     * @return the per-row scale factors, created (all 1) the first time rows are normalized
+     */
+    private synchronized float[] scales() {
+        if(scale == null) {
+            float[] ones = new float[rowOffsets.length];
+            Arrays.fill(ones, 1f);
+            scale = ones;
+        }
+        return scale;
+    }
+
+    @Override
+    public void retain(int[] keep) {
+        for(int j=0; j<keep.length; j++) {
+            rowOffsets[j] = rowOffsets[keep[j]];
+            if(scale != null) scale[j] = scale[keep[j]];
+        }
+        size = keep.length;
+        retainNorms(keep);
+    }
+}
@@ -4,10 +4,12 @@ import org.kohsuke.args4j.Option;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Created by greg on 1/28/17.
@@ -46,6 +48,14 @@ public class PareAnalogies {
         @Option(name="-emb")
         private String embeddingsFile = null;
 
+        // memory-map the embeddings file instead of reading it onto the heap
+        @Option(name="-map")
+        private boolean mapEmbeddings = false;
+
+        // read vectors from the embeddings file only as they are needed (keeping at most this many in memory)
+        @Option(name="-lazy")
+        private int lazyCacheRows = 0;
+
         @Option(name="-in")
         private String inputFile;
 
@@ -85,6 +95,10 @@ public class PareAnalogies {
         @Option(name="-wn")
         private String wordNetPath = null;
 
+        // file to keep WordNet entropy and PRoS scores in between runs
+        @Option(name="-cache")
+        private String cacheFile = null;
+
         @Option(name="-out")
         private String outputFile;
 
@@ -105,47 +119,163 @@ public class PareAnalogies {
             }
 
             if(embeddingsFile != null) {
-                emb = Word2vecReader.readBinFile(embeddingsFile);
+                if(lazyCacheRows > 0) {
+                    emb = Word2vecReader.openBinFile(embeddingsFile, lazyCacheRows);
+                } else {
+                    emb = mapEmbeddings ? Word2vecReader.mapBinFile(embeddingsFile) : Word2vecReader.readBinFile(embeddingsFile);
+                }
             }
             if(wordNetPath != null) {
                 wordNet = new WordNet(wordNetPath);
+                if(cacheFile != null && new File(cacheFile).isFile() && !wordNet.loadCache(cacheFile)) {
+                    System.out.println("Ignoring " + cacheFile + ", which was saved with a different WordNet or is damaged");
+                }
             }
 
-            BufferedReader reader = new BufferedReader(new FileReader(inputFile));
-            BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile));
-            String line;
-            int numRead = 0;
-            while((line = reader.readLine()) != null) {
-                if(line.startsWith(":")) {
-                    writer.write(line + "\n");
-                    continue;
+            try (BufferedReader reader = new BufferedReader(new FileReader(inputFile));
+                 BufferedWriter writer = new BufferedWriter(new FileWriter(outputFile))) {
+                pare(reader, writer);
+            }
+            if(emb != null) {
+                emb.close();
+            }
+            if(wordNet != null) {
+                System.out.println(wordNet.cacheStats());
+                if(cacheFile != null) {
+                    wordNet.saveCache(cacheFile);
                 }
-                String[] words = line.split("\\s+");
+            }
+        }
 
-                if(fitsCriteria(words)) {
-                    writer.write(line + "\n");
-                }
+        // lines handed to a filter worker at a time
+        private static final int BATCH_LINES = 1024;
+        // batches that may be read but not yet written, per worker
+        private static final int BATCHES_IN_FLIGHT_PER_WORKER = 4;
+        private static final long REPORT_INTERVAL_MS = 10000;
+
+        /**
+         * Lines of the input file and whether to keep each one (computed by a worker)
+         */
+        private static class Batch {
+            final String[] lines;
+            final Future<boolean[]> keep;
+            // set on the batch that marks the end of the input (no lines)
+            final Exception failure;
+            Batch(String[] lines, Future<boolean[]> keep, Exception failure) {
+                this.lines = lines;
+                this.keep = keep;
+                this.failure = failure;
+            }
+        }
 
-                numRead++;
-                if(numRead % 100000 == 0) {
-                    System.out.println(numRead + " analogies read");
+        /**
+         * Filter analogies in parallel: a reader thread hands batches of lines to a pool of workers and queues them in input order;
+         *      this thread writes each batch once its results are in. The queue is bounded, so the reader waits when
+         *      writing (or the slowest batch) falls behind. Category headers and the order of lines are preserved
+         */
+        private void pare(BufferedReader reader, BufferedWriter writer) throws Exception {
+            int nWorkers = Math.max(1, Threading.getnThreads());
+            ExecutorService workers = Executors.newFixedThreadPool(nWorkers, runnable -> {
+                Thread thread = new Thread(runnable, "PareAnalogies worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            BlockingQueue<Batch> pending = new ArrayBlockingQueue<>(nWorkers * BATCHES_IN_FLIGHT_PER_WORKER);
+            Thread readerThread = new Thread(() -> {
+                Exception failure = null;
+                try {
+                    List<String> lines = new ArrayList<>(BATCH_LINES);
+                    String line;
+                    while((line = reader.readLine()) != null) {
+                        lines.add(line);
+                        if(lines.size() == BATCH_LINES) {
+                            pending.put(submit(workers, lines));
+                            lines = new ArrayList<>(BATCH_LINES);
+                        }
+                    }
+                    if(!lines.isEmpty()) {
+                        pending.put(submit(workers, lines));
+                    }
+                } catch(InterruptedException e) {
+                    return;
+                } catch(Exception e) {
+                    failure = e;
+                }
+                try {
+                    pending.put(new Batch(null, null, failure));
+                } catch(InterruptedException ignored) {
                 }
+            }, "PareAnalogies reader");
+            readerThread.setDaemon(true);
+            readerThread.start();
+
+            long start = System.currentTimeMillis();
+            long lastReport = start;
+            long numRead = 0;
+            long numWritten = 0;
+            try {
+                while(true) {
+                    Batch batch = pending.take();
+                    if(batch.lines == null) {
+                        if(batch.failure != null) throw batch.failure;
+                        break;
+                    }
+                    boolean[] keep;
+                    try {
+                        keep = batch.keep.get();
+                    } catch(ExecutionException e) {
+                        throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    }
+                    for(int i=0; i<batch.lines.length; i++) {
+                        if(keep[i]) {
+                            writer.write(batch.lines[i] + "\n");
+                            numWritten++;
+                        }
+                    }
+                    numRead += batch.lines.length;
+                    long now = System.currentTimeMillis();
+                    if(now - lastReport >= REPORT_INTERVAL_MS) {
+                        System.out.printf("%d lines read (%.0f lines/s)%n", numRead, numRead * 1000. / Math.max(1, now - start));
+                        lastReport = now;
+                    }
+                }
+            } finally {
+                readerThread.interrupt();
+                workers.shutdownNow();
             }
             writer.flush();
-            writer.close();
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+            System.out.printf("%d lines read, %d written in %.1f s (%.0f lines/s)%n", numRead, numWritten, elapsed / 1000., numRead * 1000. / elapsed);
+        }
+
+        private Batch submit(ExecutorService workers, List<String> lineList) {
+            String[] lines = lineList.toArray(new String[lineList.size()]);
+            Future<boolean[]> keep = workers.submit(() -> {
+                boolean[] fits = new boolean[lines.length];
+                for(int i=0; i<lines.length; i++) {
+                    // category headers are always kept
+                    fits[i] = lines[i].startsWith(":") || fitsCriteria(lines[i].split("\\s+"));
+                }
+                return fits;
+            });
+            return new Batch(lines, keep, null);
         }
 
         private boolean fitsCriteria(String[] words) {
             if(emb != null) {
-                if (!emb.contains(words[0]) || !emb.contains(words[1]) || !emb.contains(words[2]) || !emb.contains(words[3]))
+                int i1 = emb.indexOf(words[0]);
+                int i2 = emb.indexOf(words[1]);
+                int i3 = emb.indexOf(words[2]);
+                int i4 = emb.indexOf(words[3]);
+                if (i1 < 0 || i2 < 0 || i3 < 0 || i4 < 0)
                     return false;
-                double sim24 = emb.get(words[1]).cosSim(emb.get(words[3]));
+                double sim24 = emb.get(i2).cosSim(emb.get(i4));
                 if (sim24 < min24 || sim24 > max24)
                     return false;
-                double sim34 = emb.get(words[2]).cosSim(emb.get(words[3]));
+                double sim34 = emb.get(i3).cosSim(emb.get(i4));
                 if (sim34 < min34 || sim34 > max34)
                     return false;
-                double sim12 = emb.get(words[0]).cosSim(emb.get(words[1]));
+                double sim12 = emb.get(i1).cosSim(emb.get(i2));
                 if (sim12 < min12 || sim12 > max12)
                     return false;
             }
@@ -1,3 +1,5 @@
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.logging.Logger;
 
@@ -7,7 +9,9 @@ import java.util.logging.Logger;
  * Delimiter will always be a space in the internal representation
  * Created by gpfinley on 2/26/16.
  */
-public final class Phrase implements Iterable<String>, Comparable<Phrase> {
+public final class Phrase implements Iterable<String>, Comparable<Phrase>, Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private static Logger LOGGER = Logger.getLogger(Phrase.class.getName());
 
@@ -44,6 +48,75 @@ public final class Phrase implements Iterable<String>, Comparable<Phrase> {
         if(form.length() == 0) zeroLengthWarn();
     }
 
+    /**
+     * Find the internal form that new Phrase(word, "_+") (or, if not collapseUnderscores, new Phrase(word, "_")) would have,
+     *      without creating any objects for ASCII words
+     * @param bytes UTF-8 bytes of the word as it appears in an embeddings file
+     * @param offset index of the first byte of the word
+     * @param length number of bytes in the word
+     * @param collapseUnderscores true if a run of underscores is a single delimiter
+     * @param dest buffer to write the form into (its contents are replaced)
+     * @return dest
+     */
+    static StringBuilder formOf(byte[] bytes, int offset, int length, boolean collapseUnderscores, StringBuilder dest) {
+        dest.setLength(0);
+        for(int i=offset; i<offset+length; i++) {
+            if(bytes[i] < 0) {
+                dest.setLength(0);
+                dest.append(new String(bytes, offset, length, StandardCharsets.UTF_8));
+                break;
+            }
+            dest.append((char) bytes[i]);
+        }
+        return toForm(dest, collapseUnderscores);
+    }
+
+    /**
+     * Same as formOf(byte[], ...) for a word that has already been decoded
+     */
+    static StringBuilder formOf(CharSequence word, boolean collapseUnderscores, StringBuilder dest) {
+        dest.setLength(0);
+        dest.append(word);
+        return toForm(dest, collapseUnderscores);
+    }
+
+    /**
+     * Trim, replace underscores with spaces, and trim again, in place
+     */
+    private static StringBuilder toForm(StringBuilder word, boolean collapseUnderscores) {
+        int start = 0;
+        int end = word.length();
+        while(start < end && word.charAt(start) <= ' ') start++;
+        while(end > start && word.charAt(end - 1) <= ' ') end--;
+        int length = 0;
+        boolean underscores = false;
+        for(int i=start; i<end; i++) {
+            char c = word.charAt(i);
+            if(c == '_') {
+                if(collapseUnderscores && underscores) continue;
+                underscores = true;
+                c = ' ';
+            } else {
+                underscores = false;
+            }
+            word.setCharAt(length++, c);
+        }
+        word.setLength(length);
+        start = 0;
+        while(start < length && word.charAt(start) <= ' ') start++;
+        while(length > start && word.charAt(length - 1) <= ' ') length--;
+        word.setLength(length);
+        if(start > 0) word.delete(0, start);
+        return word;
+    }
+
+    /**
+     * Wrap a string that is already in internal form (words separated by single spaces) without splitting it again
+     */
+    static Phrase fromForm(String form) {
+        return new Phrase(new String[] {form});
+    }
+
     private static void zeroLengthWarn() {
         LOGGER.warning("Creating an empty phrase! May cause trouble down the line.");
     }
@@ -0,0 +1,170 @@
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash table from phrase strings to int indices, numbered in the order they were added
+ * Avoids the entry and Integer objects of a HashMap, and every lookup is a single probe sequence
+ * Keys are compared as strings, so a Phrase and its toString() find the same index
+ */
+public class PhraseIndex {
+
+    private static final int EMPTY = -1;
+
+    // key and hash of every entry, by index
+    private String[] keys;
+    private int[] hashes;
+    // hash table of indices (EMPTY where unused); always at most half full
+    private int[] slots;
+    private int mask;
+    private int size;
+
+    public PhraseIndex() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize number of keys to allocate space for up front
+     */
+    public PhraseIndex(int expectedSize) {
+        expectedSize = Math.max(16, expectedSize);
+        keys = new String[expectedSize];
+        hashes = new int[expectedSize];
+        int capacity = Integer.highestOneBit(expectedSize * 2 - 1) << 1;
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Rebuild an index from the tables of another (as written by EmbeddingsSnapshot) without hashing any keys
+     * @param keys the keys by index (the array may be longer than size)
+     * @param hashes the hash of every key, by index (as long as keys)
+     * @param slots the hash table of the original index
+     * @param size the number of keys
+     */
+    PhraseIndex(String[] keys, int[] hashes, int[] slots, int size) {
+        this.keys = keys;
+        this.hashes = hashes;
+        this.slots = slots;
+        this.size = size;
+        mask = slots.length - 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    int hashAt(int index) {
+        return hashes[index];
+    }
+
+    /**
+     * @return the hash table itself (not a copy)
+     */
+    int[] slots() {
+        return slots;
+    }
+
+    public int indexOf(Phrase phrase) {
+        return indexOf(phrase.toString());
+    }
+
+    /**
+     * Find the index of a key without creating any objects
+     * @param key the exact string form of a phrase (words separated by single spaces)
+     * @return the index of the key, or -1 if it is not present
+     */
+    public int indexOf(CharSequence key) {
+        int hash = hash(key);
+        for(int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if(index == EMPTY) return -1;
+            if(hashes[index] == hash && matches(keys[index], key)) return index;
+        }
+    }
+
+    /**
+     * Add a key, giving it the next index, unless it is already present
+     * @param key the exact string form of a phrase
+     * @return the new index (equal to size() before the call), or -1 if the key was already present
+     */
+    public int add(String key) {
+        int hash = hash(key);
+        int slot = hash & mask;
+        for(; slots[slot] != EMPTY; slot = (slot + 1) & mask) {
+            int index = slots[slot];
+            if(hashes[index] == hash && keys[index].equals(key)) return -1;
+        }
+        int index = size++;
+        if(index == keys.length) {
+            keys = Arrays.copyOf(keys, index * 2);
+            hashes = Arrays.copyOf(hashes, index * 2);
+        }
+        keys[index] = key;
+        hashes[index] = hash;
+        slots[slot] = index;
+        if(size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return index;
+    }
+
+    /**
+     * Get the key at a given index
+     * @param index an index between 0 and size()-1
+     * @return the string form of the phrase
+     */
+    public String keyAt(int index) {
+        return keys[index];
+    }
+
+    /**
+     * Discard all keys other than the ones specified and renumber the rest in order
+     * @param keep indices of the keys to keep, in ascending order
+     */
+    public void retain(int[] keep) {
+        for(int j=0; j<keep.length; j++) {
+            keys[j] = keys[keep[j]];
+            hashes[j] = hashes[keep[j]];
+        }
+        Arrays.fill(keys, keep.length, size, null);
+        size = keep.length;
+        rehash(slots.length);
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        Arrays.fill(slots, EMPTY);
+        mask = capacity - 1;
+        for(int index=0; index<size; index++) {
+            int slot = hashes[index] & mask;
+            while(slots[slot] != EMPTY) slot = (slot + 1) & mask;
+            slots[slot] = index;
+        }
+    }
+
+    /**
+     * String.hashCode, spread so that the low bits used for the slot number vary
+     */
+    private static int hash(CharSequence key) {
+        int h;
+        if(key instanceof String) {
+            h = key.hashCode();
+        } else {
+            h = 0;
+            for(int i=0; i<key.length(); i++) {
+                h = 31 * h + key.charAt(i);
+            }
+        }
+        h *= 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean matches(String key, CharSequence other) {
+        if(other instanceof String) return key.equals(other);
+        if(key.length() != other.length()) return false;
+        for(int i=0; i<key.length(); i++) {
+            if(key.charAt(i) != other.charAt(i)) return false;
+        }
+        return true;
+    }
+}
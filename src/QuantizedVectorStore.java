@@ -0,0 +1,357 @@
+import java.util.Arrays;
+
+/**
+ * Vector storage that keeps a compact copy of every row (8-bit codes or half-precision floats)
+ *      alongside the full-precision rows of another store
+ * Full-vocabulary scans run on the compact copy, which takes 2-4x less memory bandwidth.
+ * For every row we record an upper bound on the distance between the row and its compact copy,
+ *      so a scan can tell exactly which rows are too close to call; only those are rescored at full precision.
+ *      Results (ranks, top-n lists) are therefore identical to those of the full-precision store.
+ */
+public class QuantizedVectorStore extends VectorStore {
+
+    public enum Encoding {
+        // one signed byte per value, scaled by the row's largest absolute value
+        INT8,
+        // IEEE half-precision float per value
+        FLOAT16
+    }
+
+    // keep every block well below the maximum array length
+    private static final int MAX_BLOCK_VALUES = 1 << 26;
+
+    // relative margin added to the error bounds to cover rounding in the dot product arithmetic itself
+    //      (per dimension when dot products are accumulated in float precision)
+    private static final double ROUNDING_MARGIN = 1e-7;
+
+    private final VectorStore full;
+    private final Encoding encoding;
+    private final int dimensionality;
+    private final int rowsPerBlock;
+    private byte[][] byteBlocks;
+    private short[][] halfBlocks;
+    // per-row multiplier for INT8 codes
+    private float[] scales;
+    // per-row magnitude of the difference between the row and its compact copy (plus a rounding margin)
+    private float[] errors;
+
+    /**
+     * Build a compact copy of every row in a store. Rows added later are encoded as they arrive
+     * @param full the full-precision store, which will be used for exact rescoring
+     * @param encoding how to encode the compact copy
+     */
+    public QuantizedVectorStore(VectorStore full, Encoding encoding) {
+        this.full = full;
+        this.encoding = encoding;
+        dimensionality = full.dimensionality();
+        rowsPerBlock = Math.max(1, MAX_BLOCK_VALUES / Math.max(1, dimensionality));
+        byteBlocks = new byte[0][];
+        halfBlocks = new short[0][];
+        scales = new float[Math.max(16, full.size())];
+        errors = new float[Math.max(16, full.size())];
+        encodeAll();
+    }
+
+    /**
+     * Wrap a store whose compact copy was saved earlier (see EmbeddingsSnapshot), without encoding anything
+     * The code blocks are allocated but left empty: the caller fills them in through byteBlock or halfBlock
+     * @param full the full-precision store
+     * @param encoding the encoding of the saved codes
+     * @param scales per-row multipliers of INT8 codes (ignored for FLOAT16), of length at least max(16, full.size())
+     * @param errors per-row error bounds computed by encode, of length at least max(16, full.size())
+     */
+    QuantizedVectorStore(VectorStore full, Encoding encoding, float[] scales, float[] errors) {
+        this.full = full;
+        this.encoding = encoding;
+        dimensionality = full.dimensionality();
+        rowsPerBlock = Math.max(1, MAX_BLOCK_VALUES / Math.max(1, dimensionality));
+        this.scales = scales;
+        this.errors = errors;
+        int size = full.size();
+        int nBlocks = (size + rowsPerBlock - 1) / rowsPerBlock;
+        byteBlocks = new byte[encoding == Encoding.INT8 ? nBlocks : 0][];
+        halfBlocks = new short[encoding == Encoding.FLOAT16 ? nBlocks : 0][];
+        for(int b=0; b<nBlocks; b++) {
+            int length = Math.min(rowsPerBlock, size - b * rowsPerBlock) * dimensionality;
+            if(encoding == Encoding.INT8) {
+                byteBlocks[b] = new byte[length];
+            } else {
+                halfBlocks[b] = new short[length];
+            }
+        }
+    }
+
+    public Encoding encoding() {
+        return encoding;
+    }
+
+    /**
+     * Row i's codes live in block i / rowsPerBlock(), starting at index (i % rowsPerBlock()) * dimensionality()
+     */
+    int rowsPerBlock() {
+        return rowsPerBlock;
+    }
+
+    /**
+     * @return the backing array of a block of INT8 codes (not a copy)
+     */
+    byte[] byteBlock(int b) {
+        return byteBlocks[b];
+    }
+
+    /**
+     * @return the backing array of a block of FLOAT16 codes (not a copy)
+     */
+    short[] halfBlock(int b) {
+        return halfBlocks[b];
+    }
+
+    float scale(int i) {
+        return scales[i];
+    }
+
+    float error(int i) {
+        return errors[i];
+    }
+
+    @Override
+    public int dimensionality() {
+        return dimensionality;
+    }
+
+    @Override
+    public int size() {
+        return full.size();
+    }
+
+    @Override
+    public void add(float[] vector) {
+        full.add(vector);
+        encode(full.size() - 1, vector);
+    }
+
+    /**
+     * Rows are returned as copies, since changing a full-precision row would leave its compact copy stale
+     * @param i the row index
+     * @return a new WordEmbedding holding the row's full-precision values
+     */
+    @Override
+    public WordEmbedding row(int i) {
+        return new WordEmbedding(full.row(i));
+    }
+
+    @Override
+    public double dot(int i, WordEmbedding emb) {
+        return full.dot(i, emb);
+    }
+
+    /**
+     * Estimate a dot product from the compact copy of a row
+     * @param i the row index
+     * @param emb a vector of the same dimensionality
+     * @return an estimate within bound(i, emb.mag()) of dot(i, emb)
+     */
+    public double approxDot(int i, WordEmbedding emb) {
+        int offset = (i % rowsPerBlock) * dimensionality;
+        if(encoding == Encoding.INT8) {
+            return emb.dot(byteBlocks[i / rowsPerBlock], offset) * scales[i];
+        } else {
+            return emb.dotHalf(halfBlocks[i / rowsPerBlock], offset);
+        }
+    }
+
+    /**
+     * Upper bound on |approxDot(i, emb) - dot(i, emb)| (by Cauchy-Schwarz)
+     * @param i the row index
+     * @param embMag the magnitude of the vector being compared
+     * @return the bound
+     */
+    public double bound(int i, double embMag) {
+        return errors[i] * embMag;
+    }
+
+    @Override
+    public boolean dotExceeds(int i, WordEmbedding emb, double embMag, double threshold) {
+        double approx = approxDot(i, emb);
+        double bound = bound(i, embMag);
+        if(approx - bound > threshold) return true;
+        if(approx + bound <= threshold) return false;
+        return full.dot(i, emb) > threshold;
+    }
+
+    @Override
+    public void offerRange(WordEmbedding emb, TopKHeap heap, int begin, int end, int[] exclude) {
+        if(end <= begin) return;
+        double embMag = emb.mag();
+        double[] approx = new double[end - begin];
+        // the heap's current contents are exact scores, so they count as lower bounds too
+        TopKHeap lowerBounds = new TopKHeap(heap.capacity());
+        lowerBounds.offerAll(heap);
+        for(int i=begin; i<end; i++) {
+            approx[i - begin] = approxDot(i, emb);
+            if(!excluded(i, exclude)) {
+                lowerBounds.offer(i, approx[i - begin] - bound(i, embMag));
+            }
+        }
+        // enough rows score at least this much that no row whose upper bound is below it can make the cut
+        double threshold = lowerBounds.threshold();
+        for(int i=begin; i<end; i++) {
+            if(approx[i - begin] + bound(i, embMag) >= threshold && !excluded(i, exclude)) {
+                heap.offer(i, full.dot(i, emb));
+            }
+        }
+    }
+
+    @Override
+    public double norm(int i) {
+        return full.norm(i);
+    }
+
+    @Override
+    public boolean isNormalized() {
+        return full.isNormalized();
+    }
+
+    /**
+     * Normalize the full-precision rows and encode them again, in parallel, in a single pass
+     */
+    @Override
+    public void normalizeRows() {
+        if(full.isNormalized()) return;
+        Threading.parallelFor(size(), this::normalizeRows);
+        full.markNormalized();
+    }
+
+    @Override
+    protected void normalizeRows(int begin, int end) {
+        full.normalizeRows(begin, end);
+        for(int i=begin; i<end; i++) {
+            encode(i, full.row(i).toArray());
+        }
+    }
+
+    @Override
+    public void retain(int[] keep) {
+        full.retain(keep);
+        for(int j=0; j<keep.length; j++) {
+            int i = keep[j];
+            scales[j] = scales[i];
+            errors[j] = errors[i];
+            if(i != j) {
+                int from = (i % rowsPerBlock) * dimensionality;
+                int to = (j % rowsPerBlock) * dimensionality;
+                if(encoding == Encoding.INT8) {
+                    System.arraycopy(byteBlocks[i / rowsPerBlock], from, byteBlocks[j / rowsPerBlock], to, dimensionality);
+                } else {
+                    System.arraycopy(halfBlocks[i / rowsPerBlock], from, halfBlocks[j / rowsPerBlock], to, dimensionality);
+                }
+            }
+        }
+    }
+
+    private void encodeAll() {
+        for(int i=0; i<full.size(); i++) {
+            encode(i, full.row(i).toArray());
+        }
+    }
+
+    private void encode(int i, float[] vector) {
+        int b = i / rowsPerBlock;
+        int offset = (i % rowsPerBlock) * dimensionality;
+        ensureCapacity(i, b, offset + dimensionality);
+        double sqError = 0;
+        double sqMag = 0;
+        for(float x : vector) sqMag += (double) x * x;
+        if(encoding == Encoding.INT8) {
+            byte[] block = byteBlocks[b];
+            float max = 0;
+            for(float x : vector) max = Math.max(max, Math.abs(x));
+            float scale = max == 0 ? 1 : max / 127;
+            for(int j=0; j<dimensionality; j++) {
+                int code = Math.round(vector[j] / scale);
+                block[offset + j] = (byte) Math.max(-127, Math.min(127, code));
+                double diff = vector[j] - (double) block[offset + j] * scale;
+                sqError += diff * diff;
+            }
+            scales[i] = scale;
+        } else {
+            short[] block = halfBlocks[b];
+            for(int j=0; j<dimensionality; j++) {
+                block[offset + j] = floatToHalf(vector[j]);
+                double diff = vector[j] - (double) halfToFloat(block[offset + j]);
+                sqError += diff * diff;
+            }
+        }
+        double margin = WordEmbedding.FLOAT_ACCUMULATION ? ROUNDING_MARGIN * dimensionality : ROUNDING_MARGIN;
+        double error = Math.sqrt(sqError) + margin * Math.sqrt(sqMag);
+        errors[i] = Math.nextUp((float) error);
+    }
+
+    private void ensureCapacity(int i, int b, int length) {
+        if(i >= scales.length) {
+            scales = Arrays.copyOf(scales, scales.length * 2);
+            errors = Arrays.copyOf(errors, errors.length * 2);
+        }
+        int maxLength = rowsPerBlock * dimensionality;
+        if(encoding == Encoding.INT8) {
+            if(b >= byteBlocks.length) byteBlocks = Arrays.copyOf(byteBlocks, b + 1);
+            if(byteBlocks[b] == null) {
+                byteBlocks[b] = new byte[(int) Math.min(maxLength, Math.max(length, (long) full.size() * dimensionality))];
+            } else if(byteBlocks[b].length < length) {
+                byteBlocks[b] = Arrays.copyOf(byteBlocks[b], Math.max(length, Math.min(maxLength, 2 * byteBlocks[b].length)));
+            }
+        } else {
+            if(b >= halfBlocks.length) halfBlocks = Arrays.copyOf(halfBlocks, b + 1);
+            if(halfBlocks[b] == null) {
+                halfBlocks[b] = new short[(int) Math.min(maxLength, Math.max(length, (long) full.size() * dimensionality))];
+            } else if(halfBlocks[b].length < length) {
+                halfBlocks[b] = Arrays.copyOf(halfBlocks[b], Math.max(length, Math.min(maxLength, 2 * halfBlocks[b].length)));
+            }
+        }
+    }
+
+    // every half-precision value, decoded
+    private static final float[] HALF_TO_FLOAT = new float[1 << 16];
+    static {
+        for(int h=0; h < (1 << 16); h++) {
+            int sign = (h & 0x8000) << 16;
+            int exponent = (h >>> 10) & 0x1f;
+            int mantissa = h & 0x3ff;
+            float value;
+            if(exponent == 0) {
+                value = mantissa * 0x1p-24f;
+                if(sign != 0) value = -value;
+            } else if(exponent == 0x1f) {
+                value = Float.intBitsToFloat(sign | 0x7f800000 | (mantissa << 13));
+            } else {
+                value = Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+            }
+            HALF_TO_FLOAT[h] = value;
+        }
+    }
+
+    static float halfToFloat(short half) {
+        return HALF_TO_FLOAT[half & 0xffff];
+    }
+
+    /**
+     * Round a float to the nearest half-precision value (saturating to infinity beyond the half range)
+     */
+    static short floatToHalf(float value) {
+        int sign = (Float.floatToIntBits(value) >>> 16) & 0x8000;
+        float abs = Math.abs(value);
+        if(Float.isNaN(value)) return (short) 0x7e00;
+        if(abs >= 65520f) return (short) (sign | 0x7c00);
+        if(abs < 0x1p-14f) {
+            // subnormal (a mantissa of 1024 correctly rolls over into the smallest normal number)
+            return (short) (sign | Math.round(abs * 0x1p24f));
+        }
+        int exponent = Math.getExponent(abs);
+        int mantissa = Math.round((abs / Math.scalb(1f, exponent) - 1) * 1024);
+        if(mantissa == 1024) {
+            mantissa = 0;
+            exponent++;
+        }
+        return (short) (sign | ((exponent + 15) << 10) | mantissa);
+    }
+}
@@ -0,0 +1,127 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * A bounded, thread-safe cache of computed values that counts its hits and misses
+ * Entries are spread over several least-recently-used segments, each with its own lock, so that threads looking up
+ *      different keys rarely wait on each other. Values are computed outside the lock; two threads missing on the same
+ *      key at once may both compute it, which is harmless for the pure functions cached here
+ */
+public class ScoreCache<K, V> {
+
+    private static final int SEGMENTS = 16;
+
+    private final String name;
+    private final int capacity;
+    private final LinkedHashMap<K, V>[] segments;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param name a name for the cache, used when printing statistics
+     * @param capacity the most entries to keep (0 to cache nothing)
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public ScoreCache(String name, int capacity) {
+        this.name = name;
+        this.capacity = Math.max(0, capacity);
+        int segmentCapacity = (this.capacity + SEGMENTS - 1) / SEGMENTS;
+        segments = new LinkedHashMap[SEGMENTS];
+        for(int i=0; i<SEGMENTS; i++) {
+            segments[i] = new LinkedHashMap<K, V>(16, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                    return size() > segmentCapacity;
+                }
+            };
+        }
+    }
+
+    private LinkedHashMap<K, V> segment(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % SEGMENTS];
+    }
+
+    /**
+     * Get the value for a key, computing (and caching) it if it isn't cached
+     * @param key the key
+     * @param compute computes the value of a key; must not return null
+     * @return the value
+     */
+    public V get(K key, Function<? super K, ? extends V> compute) {
+        LinkedHashMap<K, V> segment = segment(key);
+        V value;
+        synchronized(segment) {
+            value = segment.get(key);
+        }
+        if(value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        value = compute.apply(key);
+        put(key, value);
+        return value;
+    }
+
+    public void put(K key, V value) {
+        if(capacity == 0) return;
+        LinkedHashMap<K, V> segment = segment(key);
+        synchronized(segment) {
+            segment.put(key, value);
+        }
+    }
+
+    /**
+     * Visit every cached entry. Entries added or evicted meanwhile may or may not be seen
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for(LinkedHashMap<K, V> segment : segments) {
+            Map<K, V> copy;
+            synchronized(segment) {
+                copy = new LinkedHashMap<>(segment);
+            }
+            copy.forEach(action);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for(LinkedHashMap<K, V> segment : segments) {
+            synchronized(segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public void clear() {
+        for(LinkedHashMap<K, V> segment : segments) {
+            synchronized(segment) {
+                segment.clear();
+            }
+        }
+        hits.reset();
+        misses.reset();
+    }
+
+    @Override
+    public String toString() {
+        long h = hits();
+        long m = misses();
+        return String.format("%s cache: %d hits, %d misses (%.1f%% hit rate), %d of %d entries used",
+                name, h, m, h + m == 0 ? 0. : 100. * h / (h + m), size(), capacity);
+    }
+}
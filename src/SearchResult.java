@@ -0,0 +1,17 @@
+/**
+ * Result of a nearest-neighbor search: dictionary indices and their scores, from most to least similar
+ */
+public class SearchResult {
+
+    public final int[] ids;
+    public final double[] scores;
+
+    public SearchResult(int[] ids, double[] scores) {
+        this.ids = ids;
+        this.scores = scores;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+}
@@ -0,0 +1,143 @@
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The relation types that hold between pairs of word senses, looked up by integer sense ids
+ * Each sense has a sorted row of the senses it is related to, each with a bitmask of relation types
+ *      (bit i for pointer type code i, so codes must be below 64), so that a lookup is a binary search over a few ints
+ * Pairs are ordered: the relations of (a, b) need not be those of (b, a)
+ */
+public class SenseRelationIndex {
+
+    private static final int MAX_TYPES = 64;
+    // bits of a packed (sense, sense, type) entry used while building
+    private static final int TYPE_BITS = 6;
+    private static final int SENSE_BITS = 25;
+
+    private final int nSenses;
+
+    // rows: partners[offsets[s] .. offsets[s+1]) are the senses related to s, in increasing order
+    private int[] offsets;
+    private int[] partners;
+    private long[] masks;
+
+    // entries added but not yet sorted into rows
+    private long[] pending = new long[1024];
+    private int nPending = 0;
+
+    /**
+     * @param nSenses the number of senses (ids run from 0 to nSenses - 1)
+     */
+    public SenseRelationIndex(int nSenses) {
+        if(nSenses >= 1 << SENSE_BITS) {
+            throw new IllegalArgumentException("Too many senses to index: " + nSenses);
+        }
+        this.nSenses = nSenses;
+    }
+
+    private SenseRelationIndex(int nSenses, int[] offsets, int[] partners, long[] masks) {
+        this.nSenses = nSenses;
+        this.offsets = offsets;
+        this.partners = partners;
+        this.masks = masks;
+        pending = null;
+    }
+
+    /**
+     * Record that a relation of some type (a code below 64) holds from one sense to another. Call build() once all are added
+     */
+    public void add(int sense1, int sense2, int type) {
+        if(type < 0 || type >= MAX_TYPES) {
+            throw new IllegalArgumentException("Relation type codes must be below " + MAX_TYPES + ": " + type);
+        }
+        if(nPending == pending.length) {
+            pending = Arrays.copyOf(pending, 2 * pending.length);
+        }
+        pending[nPending++] = ((long) sense1 << (SENSE_BITS + TYPE_BITS)) | ((long) sense2 << TYPE_BITS) | type;
+    }
+
+    /**
+     * Sort the added relations into rows, merging the types of each pair
+     */
+    public void build() {
+        Arrays.sort(pending, 0, nPending);
+        offsets = new int[nSenses + 1];
+        partners = new int[nPending];
+        masks = new long[nPending];
+        int n = 0;
+        long lastPair = -1;
+        for(int i=0; i<nPending; i++) {
+            long pair = pending[i] >>> TYPE_BITS;
+            long bit = 1L << (pending[i] & (MAX_TYPES - 1));
+            if(pair == lastPair) {
+                masks[n - 1] |= bit;
+            } else {
+                int sense1 = (int) (pair >>> SENSE_BITS);
+                partners[n] = (int) (pair & ((1 << SENSE_BITS) - 1));
+                masks[n] = bit;
+                offsets[sense1 + 1]++;
+                n++;
+                lastPair = pair;
+            }
+        }
+        for(int s=0; s<nSenses; s++) {
+            offsets[s + 1] += offsets[s];
+        }
+        partners = Arrays.copyOf(partners, n);
+        masks = Arrays.copyOf(masks, n);
+        pending = null;
+        nPending = 0;
+    }
+
+    /**
+     * @return a bitmask of the relation types that hold from sense1 to sense2 (0 if none)
+     */
+    public long relations(int sense1, int sense2) {
+        int i = Arrays.binarySearch(partners, offsets[sense1], offsets[sense1 + 1], sense2);
+        return i < 0 ? 0 : masks[i];
+    }
+
+    /**
+     * @return the number of related pairs
+     */
+    public int size() {
+        return partners.length;
+    }
+
+    /**
+     * Write a built index (big-endian)
+     */
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(nSenses);
+        out.writeInt(partners.length);
+        for(int offset : offsets) {
+            out.writeInt(offset);
+        }
+        for(int partner : partners) {
+            out.writeInt(partner);
+        }
+        for(long mask : masks) {
+            out.writeLong(mask);
+        }
+    }
+
+    /**
+     * Read an index written by write(), leaving the buffer positioned after it
+     */
+    public static SenseRelationIndex read(ByteBuffer buffer) {
+        int nSenses = buffer.getInt();
+        int n = buffer.getInt();
+        int[] offsets = new int[nSenses + 1];
+        buffer.asIntBuffer().get(offsets);
+        buffer.position(buffer.position() + 4 * offsets.length);
+        int[] partners = new int[n];
+        buffer.asIntBuffer().get(partners);
+        buffer.position(buffer.position() + 4 * n);
+        long[] masks = new long[n];
+        buffer.asLongBuffer().get(masks);
+        buffer.position(buffer.position() + 8 * n);
+        return new SenseRelationIndex(nSenses, offsets, partners, masks);
+    }
+}
@@ -0,0 +1,408 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads embeddings from text files: word2vec text and fastText .vec files (which start with a "nWords dim" line)
+ *      and GloVe text files (which don't). Every other line is a word followed by its vector. Files ending in .gz are decompressed.
+ * The file is read in large batches cut at line ends. Each batch is split into chunks of whole lines that are parsed in parallel
+ *      (with a hand-written float parser) while the next batch is read; rows are then added in file order.
+ */
+public class TextVectorReader {
+
+    private static Logger LOGGER = Logger.getLogger(TextVectorReader.class.getName());
+
+    // bytes read per batch (a batch grows if a single line is longer)
+    private static final int BATCH_BYTES = 1 << 26;
+    // chunks per thread in each batch
+    private static final int CHUNKS_PER_THREAD = 4;
+    // lines looked at to find the dimensionality of a file with no header
+    private static final int INFERENCE_LINES = 100;
+    private static final Pattern NUMBER = Pattern.compile("[-+]?(\\d+\\.?\\d*|\\.\\d+)([eE][-+]?\\d+)?|[-+]?(NaN|Infinity)");
+
+    // powers of ten that are exact as doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i=1; i<POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * @return true if a file's name marks it as one of the text formats read here (.txt, .vec, or either gzipped)
+     */
+    public static boolean isTextFile(String filename) {
+        String name = filename.endsWith(".gz") ? filename.substring(0, filename.length() - 3) : filename;
+        return name.endsWith(".txt") || name.endsWith(".vec");
+    }
+
+    public static Embeddings readTextFile(String filename) throws IOException {
+        return readTextFile(filename, 0);
+    }
+
+    /**
+     * Read a text file of embeddings
+     * @param filename the text file (gzipped if its name ends in .gz)
+     * @param maxWords the number of words to read (0 to read all of them)
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings readTextFile(String filename, int maxWords) throws IOException {
+        return readTextFile(filename, maxWords > 0 ? WordFilter.topN(maxWords) : WordFilter.ALL);
+    }
+
+    /**
+     * Read only the words of a text file of embeddings that pass a filter
+     * Lines of other words are skipped without parsing their values
+     * @param filename the text file (gzipped if its name ends in .gz)
+     * @param filter decides which words to keep (ranks count the lines of vectors, from 0)
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings readTextFile(String filename, WordFilter filter) throws IOException {
+        LOGGER.info("Reading vectors from text file...");
+        try (InputStream in = open(filename)) {
+            Batch batch = readBatch(in, null);
+            int start = 0;
+            int lineEnd = lineEnd(batch.bytes, 0, batch.length);
+            String[] firstLine = new String(batch.bytes, 0, lineEnd, StandardCharsets.UTF_8).trim().split("\\s+");
+            if(firstLine.length == 1 && firstLine[0].isEmpty()) {
+                throw new EOFException("No vectors in " + filename);
+            }
+            int expectedWords = 0;
+            int dim;
+            if(firstLine.length == 2 && firstLine[0].matches("\\d+") && firstLine[1].matches("\\d+")) {
+                expectedWords = Integer.parseInt(firstLine[0]);
+                dim = Integer.parseInt(firstLine[1]);
+                start = Math.min(lineEnd + 1, batch.length);
+            } else {
+                // no header (GloVe)
+                dim = inferDimensionality(batch.bytes, batch.length);
+                if(dim == 0) {
+                    throw new IOException("No numeric values at the end of the first lines of " + filename);
+                }
+            }
+            if(filter != WordFilter.ALL) {
+                expectedWords = 0;
+            }
+
+            HeapVectorStore store = new HeapVectorStore(dim, expectedWords);
+            Embeddings wes = new Embeddings(store);
+            int nRead = 0;
+            while(true) {
+                CompletableFuture<Batch> next = null;
+                if(!batch.eof) {
+                    Batch current = batch;
+                    next = CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return readBatch(in, current);
+                        } catch(IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    });
+                }
+                for(Rows rows : parseBatch(batch, start, dim, filter, nRead)) {
+                    nRead += rows.lines;
+                    for(int r=0; r<rows.n; r++) {
+                        if(rows.phrases[r].length() == 0) {
+                            LOGGER.info("Not including zero-length phrase in Embeddings (don't worry about it)");
+                        } else if(wes.addWord(rows.phrases[r])) {
+                            store.add(rows.vectors, r * dim);
+                        }
+                    }
+                }
+                if(next == null) break;
+                batch = join(next);
+                start = 0;
+                if(filter.done(nRead)) break;
+            }
+            LOGGER.info("Read " + wes.size() + " of " + nRead + " word vectors with " + dim + " dimensions");
+
+            return wes;
+        }
+    }
+
+    /**
+     * Work out the number of values per line of a file with no header from its first lines
+     * Words may contain spaces (as in the GloVe 840B vectors), so the values are the numeric fields at the end of a line.
+     *      A word whose last tokens look like numbers makes its line seem to have more values, never fewer,
+     *      so the smallest count over the first lines is taken
+     */
+    private static int inferDimensionality(byte[] bytes, int length) {
+        int dim = Integer.MAX_VALUE;
+        int pos = 0;
+        for(int lines = 0; pos < length && lines < INFERENCE_LINES; ) {
+            int lineEnd = lineEnd(bytes, pos, length);
+            String[] fields = new String(bytes, pos, lineEnd - pos, StandardCharsets.UTF_8).trim().split("\\s+");
+            pos = lineEnd + 1;
+            if(fields.length == 1 && fields[0].isEmpty()) continue;
+            int values = 0;
+            // the first field always belongs to the word
+            while(values < fields.length - 1 && NUMBER.matcher(fields[fields.length - 1 - values]).matches()) {
+                values++;
+            }
+            dim = Math.min(dim, values);
+            lines++;
+        }
+        return dim;
+    }
+
+    private static InputStream open(String filename) throws IOException {
+        InputStream in = new FileInputStream(filename);
+        if(filename.endsWith(".gz")) {
+            in = new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    /**
+     * Bytes of the file ending at a line end, or at the end of the file
+     */
+    private static class Batch {
+        byte[] bytes;
+        // bytes before this belong to whole lines of this batch
+        int length;
+        // bytes from length to end begin the first line of the next batch
+        int end;
+        boolean eof;
+    }
+
+    /**
+     * Read the next batch, starting with the incomplete line left over from the previous one
+     */
+    private static Batch readBatch(InputStream in, Batch previous) throws IOException {
+        Batch batch = new Batch();
+        int carried = previous == null ? 0 : previous.end - previous.length;
+        batch.bytes = new byte[Math.max(BATCH_BYTES, 2 * carried)];
+        if(carried > 0) {
+            System.arraycopy(previous.bytes, previous.length, batch.bytes, 0, carried);
+        }
+        batch.end = carried;
+        while(true) {
+            while(batch.end < batch.bytes.length) {
+                int n = in.read(batch.bytes, batch.end, batch.bytes.length - batch.end);
+                if(n < 0) {
+                    batch.eof = true;
+                    batch.length = batch.end;
+                    return batch;
+                }
+                batch.end += n;
+            }
+            for(int i = batch.end - 1; i >= 0; i--) {
+                if(batch.bytes[i] == '\n') {
+                    batch.length = i + 1;
+                    return batch;
+                }
+            }
+            // a line longer than the whole batch
+            byte[] bigger = new byte[2 * batch.bytes.length];
+            System.arraycopy(batch.bytes, 0, bigger, 0, batch.end);
+            batch.bytes = bigger;
+        }
+    }
+
+    private static Batch join(CompletableFuture<Batch> future) throws IOException {
+        try {
+            return future.join();
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Words and vectors parsed from a chunk of lines
+     */
+    private static class Rows {
+        Phrase[] phrases = new Phrase[64];
+        float[] vectors;
+        // rows kept
+        int n;
+        // lines of vectors seen, including those filtered out
+        int lines;
+    }
+
+    /**
+     * Parse the lines of a batch in parallel
+     * @param firstRank the rank of the batch's first line of vectors
+     * @return the rows of each chunk, in file order
+     */
+    private static Rows[] parseBatch(Batch batch, int start, int dim, WordFilter filter, int firstRank) {
+        byte[] bytes = batch.bytes;
+        int nChunks = (int) Math.max(1, Math.min((batch.length - start) / 4096, (long) Threading.getnThreads() * CHUNKS_PER_THREAD));
+        // chunk boundaries fall just after line ends
+        int[] bounds = new int[nChunks + 1];
+        bounds[0] = start;
+        for(int c=1; c<nChunks; c++) {
+            int pos = Math.max(bounds[c - 1], start + (int) ((long) (batch.length - start) * c / nChunks));
+            bounds[c] = Math.min(batch.length, lineEnd(bytes, pos, batch.length) + 1);
+        }
+        bounds[nChunks] = batch.length;
+        // ranks are only needed (and so only counted) when there is a filter
+        int[] ranks = new int[nChunks];
+        if(filter != WordFilter.ALL) {
+            Threading.parallelFor(nChunks, (begin, end) -> {
+                for(int c=begin; c<end; c++) {
+                    ranks[c] = countLines(bytes, bounds[c], bounds[c + 1]);
+                }
+            });
+            for(int c=0, rank=firstRank; c<nChunks; c++) {
+                int lines = ranks[c];
+                ranks[c] = rank;
+                rank += lines;
+            }
+        }
+        Rows[] chunks = new Rows[nChunks];
+        Threading.parallelFor(nChunks, (begin, end) -> {
+            for(int c=begin; c<end; c++) {
+                chunks[c] = parseLines(bytes, bounds[c], bounds[c + 1], dim, filter, ranks[c]);
+            }
+        });
+        return chunks;
+    }
+
+    private static Rows parseLines(byte[] bytes, int begin, int end, int dim, WordFilter filter, int firstRank) {
+        Rows rows = new Rows();
+        rows.vectors = new float[rows.phrases.length * dim];
+        StringBuilder form = new StringBuilder();
+        int pos = begin;
+        while(pos < end && !filter.done(firstRank + rows.lines)) {
+            int lineEnd = lineEnd(bytes, pos, end);
+            int next = lineEnd + 1;
+            // trailing spaces and carriage returns
+            while(lineEnd > pos && isSpace(bytes[lineEnd - 1])) lineEnd--;
+            if(lineEnd == pos) {
+                pos = next;
+                continue;
+            }
+            // the values are the last dim fields; the word is everything before them (it may contain spaces)
+            int wordEnd = lineEnd;
+            for(int j=0; j<dim; j++) {
+                while(wordEnd > pos && !isSpace(bytes[wordEnd - 1])) wordEnd--;
+                while(wordEnd > pos && isSpace(bytes[wordEnd - 1])) wordEnd--;
+            }
+            if(wordEnd == pos) {
+                throw new IllegalArgumentException("Expected a word and " + dim + " values in line: "
+                        + new String(bytes, pos, lineEnd - pos, StandardCharsets.UTF_8));
+            }
+            int rank = firstRank + rows.lines++;
+            Phrase.formOf(bytes, pos, wordEnd - pos, true, form);
+            if(!filter.accept(rank, form)) {
+                pos = next;
+                continue;
+            }
+            if(rows.n == rows.phrases.length) {
+                rows.phrases = Arrays.copyOf(rows.phrases, 2 * rows.n);
+                rows.vectors = Arrays.copyOf(rows.vectors, 2 * rows.n * dim);
+            }
+            rows.phrases[rows.n] = Phrase.fromForm(form.toString());
+            int field = wordEnd;
+            int offset = rows.n * dim;
+            for(int j=0; j<dim; j++) {
+                while(isSpace(bytes[field])) field++;
+                int fieldEnd = field;
+                while(fieldEnd < lineEnd && !isSpace(bytes[fieldEnd])) fieldEnd++;
+                rows.vectors[offset + j] = parseFloat(bytes, field, fieldEnd);
+                field = fieldEnd;
+            }
+            rows.n++;
+            pos = next;
+        }
+        return rows;
+    }
+
+    /**
+     * @return the number of lines with anything other than whitespace on them
+     */
+    private static int countLines(byte[] bytes, int begin, int end) {
+        int lines = 0;
+        boolean blank = true;
+        for(int i=begin; i<end; i++) {
+            if(bytes[i] == '\n') {
+                if(!blank) lines++;
+                blank = true;
+            } else if(!isSpace(bytes[i])) {
+                blank = false;
+            }
+        }
+        return blank ? lines : lines + 1;
+    }
+
+    /**
+     * @return the index of the first newline at or after begin, or end if there is none
+     */
+    private static int lineEnd(byte[] bytes, int begin, int end) {
+        for(int i=begin; i<end; i++) {
+            if(bytes[i] == '\n') return i;
+        }
+        return end;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    /**
+     * Parse a decimal number, giving the same result as Float.parseFloat
+     * Numbers with at most 15 significant digits and a small exponent take one exact double operation;
+     *      anything else (and the rare double that falls halfway between two floats) goes to Float.parseFloat
+     */
+    static float parseFloat(byte[] bytes, int begin, int end) {
+        int i = begin;
+        boolean negative = false;
+        if(i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        for(; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            mantissa = mantissa * 10 + (bytes[i] - '0');
+            if(mantissa > 0) digits++;
+            any = true;
+        }
+        if(i < end && bytes[i] == '.') {
+            for(i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+                mantissa = mantissa * 10 + (bytes[i] - '0');
+                if(mantissa > 0) digits++;
+                exponent--;
+                any = true;
+            }
+        }
+        if(i < end && any && (bytes[i] == 'e' || bytes[i] == 'E')) {
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+')) {
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponent = false;
+            for(; i < end && bytes[i] >= '0' && bytes[i] <= '9' && e < 1000; i++) {
+                e = e * 10 + (bytes[i] - '0');
+                anyExponent = true;
+            }
+            if(!anyExponent) any = false;
+            exponent += negativeExponent ? -e : e;
+        }
+        if(!any || i != end || digits > 15 || exponent < -22 || exponent > 22) {
+            return Float.parseFloat(new String(bytes, begin, end - begin, StandardCharsets.US_ASCII));
+        }
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        if(value != 0 && (value < Float.MIN_NORMAL || value > Float.MAX_VALUE
+                || (Double.doubleToRawLongBits(value) & 0x1FFFFFFFL) == 0x10000000L)) {
+            return Float.parseFloat(new String(bytes, begin, end - begin, StandardCharsets.US_ASCII));
+        }
+        return (float) (negative ? -value : value);
+    }
+}
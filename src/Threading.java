@@ -1,25 +1,39 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BinaryOperator;
 import java.util.function.Function;
 import java.util.logging.Logger;
 
 /**
+ * Parallel loops over ranges of integers, run on a shared pool of worker threads
+ * The range is cut into several chunks per thread, which threads take as they become free,
+ *      so uneven chunks don't leave threads idle. The calling thread works on chunks too,
+ *      so loops can be nested (a loop started from inside another never waits on a busy pool)
  * Created by gpfinley on 8/25/16.
  */
 public class Threading {
 
     private final static Logger LOGGER = Logger.getLogger(Threading.class.getName());
 
+    // chunks per thread: enough to even out the load, few enough to keep per-chunk overhead low
+    private static final int CHUNKS_PER_THREAD = 4;
+
     private static int nThreads;
     static {
         String nThreadsStr = System.getProperties().getProperty("threads");
         if (nThreadsStr != null) {
             nThreads = Integer.parseInt(nThreadsStr);
         } else {
-            nThreads = 20;
+            nThreads = Runtime.getRuntime().availableProcessors();
         }
     }
 
+    // created on first use
+    private static ExecutorService pool = null;
+
     /**
      * Get the number of threads that will be used for all operations.
      * @return the number of threads
@@ -33,76 +47,115 @@ public class Threading {
      * To set threads at application startup, use JVM argument -Dthreads=#
      * @return the number of threads to use
      */
-    public static void setnThreads(int nThreads) {
+    public static synchronized void setnThreads(int nThreads) {
         Threading.nThreads = nThreads;
+        if(pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
     }
 
+    private static synchronized ExecutorService pool() {
+        if(pool == null) {
+            // the calling thread takes part in every loop, so one fewer worker is needed
+            pool = Executors.newFixedThreadPool(Math.max(1, nThreads - 1), runnable -> {
+                Thread thread = new Thread(runnable, "Threading worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return pool;
+    }
 
     /**
-     * Perform threaded processing with any objects. Needs a class
-     * @param max
-     * @param threadClass
-     * @param args
+     * A loop body that processes a range of integers
      */
-    public static void chunkAndThread(int max, Class<? extends IntRangeThread> threadClass, Object... args) {
-        int chunkSize = max/nThreads;
-        List<Thread> threads = new ArrayList<>(nThreads);
-        for(int i=0; i<nThreads; i++) {
-            final int begin = i * chunkSize;
-            final int end;
-            if(i < nThreads - 1) {
-                end = (i+1) * chunkSize;
-            } else {
-                end = max;
-            }
-            IntRangeThread thread;
-            try {
-                thread = threadClass.newInstance();
-            } catch(Exception e) {
-                e.printStackTrace();
-                System.exit(1);
-                thread = null;
-            }
-            thread.setBeginEnd(begin, end);
-            thread.initializeParams(args);
-            threads.add(thread);
-            thread.start();
-        }
-        // wait for all the threads to finish before returning
-        int nReady;
-        do {
-            nReady = 0;
-            for(Thread thread : threads) {
-                if(thread.getState().equals(Thread.State.TERMINATED)) nReady++;
-            }
-        } while(nReady < nThreads);
+    @FunctionalInterface
+    public interface IntRangeConsumer {
+        /**
+         * @param begin the first integer (inclusive)
+         * @param end the last integer (exclusive)
+         */
+        void accept(int begin, int end);
     }
 
     /**
-     * Generic class for processing using this threading method.
+     * A loop body that processes a range of integers and returns a partial result
      */
-    public static abstract class IntRangeThread extends Thread {
+    @FunctionalInterface
+    public interface IntRangeFunction<T> {
+        T apply(int begin, int end);
+    }
 
-        protected int begin;
-        protected int end;
+    /**
+     * Process the integers from 0 to n-1 in parallel, in chunks. Returns once every chunk has been processed
+     * @param n the number of integers
+     * @param body called once for each chunk, from any thread
+     */
+    public static void parallelFor(int n, IntRangeConsumer body) {
+        parallelReduce(n, (begin, end) -> {
+            body.accept(begin, end);
+            return null;
+        }, (a, b) -> null);
+    }
 
-        private void setBeginEnd(int begin, int end) {
-            this.begin = begin;
-            this.end = end;
+    /**
+     * Process the integers from 0 to n-1 in parallel, in chunks, and combine the results of the chunks
+     * Results are combined in the order of the chunks, so the answer doesn't depend on which threads ran what
+     * @param n the number of integers
+     * @param body called once for each chunk, from any thread
+     * @param combiner combines the results of two consecutive chunks (or runs of chunks)
+     * @param <T> the result type
+     * @return the combined result, or null if n is zero
+     */
+    public static <T> T parallelReduce(int n, IntRangeFunction<T> body, BinaryOperator<T> combiner) {
+        if(n <= 0) return null;
+        int threads = Math.max(1, nThreads);
+        if(threads == 1) {
+            return body.apply(0, n);
         }
-
-        /**
-         * Parse and cast the objects in this array to set up variables for processing.
-         * Pass the same objects as the final arguments to chunkAndThread.
-         * @param args a comprehensive list of objects for threaded processing
-         */
-        public abstract void initializeParams(Object[] args);
-
-        /**
-         * Override this method to include your threaded processing
-         */
-        @Override
-        public abstract void run();
+        int nChunks = (int) Math.min(n, (long) threads * CHUNKS_PER_THREAD);
+        Object[] results = new Object[nChunks];
+        AtomicInteger nextChunk = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(nChunks);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            int chunk;
+            while((chunk = nextChunk.getAndIncrement()) < nChunks) {
+                try {
+                    if(failure.get() == null) {
+                        int begin = (int) ((long) n * chunk / nChunks);
+                        int end = (int) ((long) n * (chunk + 1) / nChunks);
+                        results[chunk] = body.apply(begin, end);
+                    }
+                } catch(Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    done.countDown();
+                }
+            }
+        };
+        ExecutorService pool = pool();
+        for(int i=1; i<Math.min(threads, nChunks); i++) {
+            pool.execute(worker);
+        }
+        worker.run();
+        try {
+            done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        Throwable t = failure.get();
+        if(t instanceof RuntimeException) throw (RuntimeException) t;
+        if(t instanceof Error) throw (Error) t;
+        if(t != null) throw new RuntimeException(t);
+
+        T result = (T) results[0];
+        for(int chunk=1; chunk<nChunks; chunk++) {
+            result = combiner.apply(result, (T) results[chunk]);
+        }
+        return result;
     }
 
     /**
@@ -115,25 +168,11 @@ public class Threading {
      * @param <T> format of the results (likely Double, but other types possible)
      */
     public static <T> void fillArrayThreaded(T[] answers, Function<Integer, T> func) {
-        chunkAndThread(answers.length, ArrayFillThread.class, answers, func);
-    }
-
-    private static class ArrayFillThread<T> extends IntRangeThread {
-        protected T[] answers;
-        protected Function<Integer, T> func;
-
-        public ArrayFillThread() {}
-
-        public void initializeParams(Object[] args) {
-            answers = (T[]) args[0];
-            func = (Function<Integer, T>) args[1];
-        }
-
-        public void run() {
+        parallelFor(answers.length, (begin, end) -> {
             for (int i = begin; i < end; i++) {
                 answers[i] = func.apply(i);
             }
-            LOGGER.info(String.format("Finished from %d to %d", begin, end));
-        }
+            LOGGER.fine(String.format("Finished from %d to %d", begin, end));
+        });
     }
 }
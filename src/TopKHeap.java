@@ -0,0 +1,114 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the k best (index, score) pairs offered to it, with no boxing
+ * Higher scores are better; equal scores are broken in favor of the lower index, so results are deterministic
+ * Internally a bounded min-heap, so offering a pair that doesn't make the cut costs a single comparison
+ */
+public class TopKHeap {
+
+    private final int k;
+    private final int[] ids;
+    private final double[] scores;
+    private int size = 0;
+
+    public TopKHeap(int k) {
+        this.k = Math.max(0, k);
+        ids = new int[this.k];
+        scores = new double[this.k];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return k;
+    }
+
+    public boolean isFull() {
+        return size == k;
+    }
+
+    /**
+     * The score a new pair must beat to be kept (negative infinity until the heap is full)
+     */
+    public double threshold() {
+        return size < k ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offer a pair to the heap
+     * @param id a dictionary index
+     * @param score its score
+     * @return true if it was kept (for now)
+     */
+    public boolean offer(int id, double score) {
+        if(size < k) {
+            int i = size++;
+            while(i > 0) {
+                int parent = (i - 1) / 2;
+                if(!worse(id, score, ids[parent], scores[parent])) break;
+                ids[i] = ids[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            ids[i] = id;
+            scores[i] = score;
+            return true;
+        }
+        if(k == 0 || !worse(ids[0], scores[0], id, score)) {
+            return false;
+        }
+        replaceRoot(ids, scores, size, id, score);
+        return true;
+    }
+
+    /**
+     * Put a pair in place of the root of a heap of n pairs, moving it down until the heap is in order again
+     */
+    private static void replaceRoot(int[] ids, double[] scores, int n, int id, double score) {
+        int i = 0;
+        while(true) {
+            int child = 2 * i + 1;
+            if(child >= n) break;
+            if(child + 1 < n && worse(ids[child + 1], scores[child + 1], ids[child], scores[child])) child++;
+            if(!worse(ids[child], scores[child], id, score)) break;
+            ids[i] = ids[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    /**
+     * Offer every pair held by another heap to this one
+     */
+    public void offerAll(TopKHeap other) {
+        for(int i=0; i<other.size; i++) {
+            offer(other.ids[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * The heap is left unchanged: a copy is popped, worst first, into the result arrays from the back
+     * @return the pairs held, best first
+     */
+    public SearchResult toResult() {
+        int[] heapIds = Arrays.copyOf(ids, size);
+        double[] heapScores = Arrays.copyOf(scores, size);
+        int[] sortedIds = new int[size];
+        double[] sortedScores = new double[size];
+        for(int n=size; n>0; n--) {
+            sortedIds[n - 1] = heapIds[0];
+            sortedScores[n - 1] = heapScores[0];
+            replaceRoot(heapIds, heapScores, n - 1, heapIds[n - 1], heapScores[n - 1]);
+        }
+        return new SearchResult(sortedIds, sortedScores);
+    }
+
+    private static boolean worse(int id1, double score1, int id2, double score2) {
+        return score1 < score2 || (score1 == score2 && id1 > id2);
+    }
+}
@@ -0,0 +1,218 @@
+import java.util.Arrays;
+
+/**
+ * Backing storage for the vectors of an Embeddings object
+ * Rows are addressed by their index in the Embeddings dictionary
+ * The magnitude of every row is cached once computed, and forgotten when the row changes
+ */
+public abstract class VectorStore {
+
+    // magnitude of every row, filled in on demand (NaN where not yet known)
+    private volatile double[] norms = new double[0];
+    // true from the time rows are normalized until a row is added or changed
+    private volatile boolean normalized = false;
+
+    public abstract int dimensionality();
+
+    /**
+     * @return the number of rows (vectors) held
+     */
+    public abstract int size();
+
+    /**
+     * Append a vector as a new row
+     * @param vector an array of length dimensionality()
+     */
+    public abstract void add(float[] vector);
+
+    /**
+     * Get a row as a WordEmbedding. Modifications to it will change the stored row,
+     *      unless rows can't be written in place (e.g. read-only or compressed stores), in which case a copy is returned
+     * @param i the row index
+     * @return a lightweight view onto the row
+     */
+    public abstract WordEmbedding row(int i);
+
+    /**
+     * Dot product of a row with another vector, computed without creating a view of the row
+     * @param i the row index
+     * @param emb a vector of the same dimensionality
+     * @return the dot product
+     */
+    public abstract double dot(int i, WordEmbedding emb);
+
+    /**
+     * Copy a range of rows, one after another, into an array
+     * @param begin the first row (inclusive)
+     * @param end the last row (exclusive)
+     * @param dest array of length at least (end - begin) * dimensionality()
+     */
+    public void copyRows(int begin, int end, float[] dest) {
+        copyRows(begin, end, dest, 0);
+    }
+
+    /**
+     * Copy a range of rows, one after another, into part of an array
+     * @param begin the first row (inclusive)
+     * @param end the last row (exclusive)
+     * @param dest array to write to
+     * @param destOffset the index in dest at which to write the first row
+     */
+    public void copyRows(int begin, int end, float[] dest, int destOffset) {
+        for(int i=begin; i<end; i++) {
+            row(i).copyTo(dest, destOffset + (i - begin) * dimensionality());
+        }
+    }
+
+    /**
+     * Compute dot products of a vector with a range of rows
+     * @param emb a vector of the same dimensionality
+     * @param results array to fill; results[i] is set for every row i in the range
+     * @param begin the first row (inclusive)
+     * @param end the last row (exclusive)
+     */
+    public void dotRange(WordEmbedding emb, double[] results, int begin, int end) {
+        for(int i=begin; i<end; i++) {
+            results[i] = dot(i, emb);
+        }
+    }
+
+    /**
+     * Decide whether the dot product of a row with a vector is greater than a threshold
+     * Stores holding compressed rows can often decide this without computing the exact dot product,
+     *      but the answer is always the same as dot(i, emb) > threshold
+     * @param i the row index
+     * @param emb a vector of the same dimensionality
+     * @param embMag the magnitude of emb
+     * @param threshold the score to compare against
+     * @return true if the row's dot product with emb is greater than the threshold
+     */
+    public boolean dotExceeds(int i, WordEmbedding emb, double embMag, double threshold) {
+        return dot(i, emb) > threshold;
+    }
+
+    /**
+     * Offer a range of rows to a top-k heap, scored by their dot product with a vector
+     * Stores holding compressed rows can skip the exact dot product for rows that can't make the cut,
+     *      but the heap always ends up holding the same rows and scores as it would with exact scoring
+     * @param emb a vector of the same dimensionality
+     * @param heap the heap to offer rows to
+     * @param begin the first row (inclusive)
+     * @param end the last row (exclusive)
+     * @param exclude rows never to offer (may be empty)
+     */
+    public void offerRange(WordEmbedding emb, TopKHeap heap, int begin, int end, int[] exclude) {
+        for(int i=begin; i<end; i++) {
+            if(!excluded(i, exclude)) {
+                heap.offer(i, dot(i, emb));
+            }
+        }
+    }
+
+    static boolean excluded(int i, int[] exclude) {
+        for(int e : exclude) {
+            if(e == i) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Magnitude of a row, computed once and then cached until the row changes
+     * @param i the row index
+     * @return the row's magnitude
+     */
+    public double norm(int i) {
+        double[] cached = norms;
+        if(i < cached.length && !Double.isNaN(cached[i])) {
+            return cached[i];
+        }
+        double norm = row(i).computeMag();
+        cacheNorm(i, norm);
+        return norm;
+    }
+
+    /**
+     * @return true if every row has been scaled to unit length (and none has changed since)
+     */
+    public boolean isNormalized() {
+        return normalized;
+    }
+
+    /**
+     * Scale every row to unit length, in parallel. Does nothing if rows are already normalized
+     */
+    public void normalizeRows() {
+        if(normalized) return;
+        Threading.parallelFor(size(), this::normalizeRows);
+        clearNorms();
+        normalized = true;
+    }
+
+    /**
+     * Scale a range of rows to unit length (called by normalizeRows from several threads at once)
+     * @param begin the first row (inclusive)
+     * @param end the last row (exclusive)
+     */
+    protected abstract void normalizeRows(int begin, int end);
+
+    /**
+     * Forget the cached magnitude of a row. Must be called whenever a row is added or changed
+     * @param i the row index
+     */
+    protected synchronized void invalidateNorm(int i) {
+        if(i < norms.length) {
+            norms[i] = Double.NaN;
+        }
+        normalized = false;
+    }
+
+    /**
+     * Forget the cached magnitudes of a range of rows
+     * @param begin the first row (inclusive)
+     * @param end the last row (exclusive)
+     */
+    protected synchronized void invalidateNorms(int begin, int end) {
+        Arrays.fill(norms, Math.min(begin, norms.length), Math.min(end, norms.length), Double.NaN);
+        normalized = false;
+    }
+
+    /**
+     * Record that every row has been scaled to unit length by some means other than normalizeRows()
+     */
+    synchronized void markNormalized() {
+        clearNorms();
+        normalized = true;
+    }
+
+    /**
+     * Discard the cached magnitudes of rows dropped by retain, and renumber the rest
+     * @param keep indices of the rows kept, in ascending order
+     */
+    protected synchronized void retainNorms(int[] keep) {
+        double[] cached = norms;
+        int n = 0;
+        for(int j=0; j<keep.length && keep[j] < cached.length; j++, n++) {
+            cached[j] = cached[keep[j]];
+        }
+        Arrays.fill(cached, Math.min(n, cached.length), cached.length, Double.NaN);
+    }
+
+    private synchronized void clearNorms() {
+        Arrays.fill(norms, Double.NaN);
+    }
+
+    private synchronized void cacheNorm(int i, double norm) {
+        if(i >= norms.length) {
+            double[] grown = Arrays.copyOf(norms, Math.max(i + 1, norms.length * 2));
+            Arrays.fill(grown, norms.length, grown.length, Double.NaN);
+            norms = grown;
+        }
+        norms[i] = norm;
+    }
+
+    /**
+     * Discard all rows other than the ones specified, preserving order
+     * @param keep indices of the rows to keep, in ascending order
+     */
+    public abstract void retain(int[] keep);
+}
@@ -1,6 +1,9 @@
 import java.io.*;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -19,56 +22,295 @@ public class Word2vecReader {
     }
 
     public static Embeddings readBinFile(String filename, int maxWords) throws IOException {
+        return readBinFile(filename, maxWords, null);
+    }
+
+    /**
+     * Read a word2vec binary file, optionally building quantized copies of the vectors
+     * Vectors are normalized before they are quantized
+     * @param filename the binary file of embeddings
+     * @param maxWords the number of words to read (0 to read all of them)
+     * @param quantize the compact encoding to use for scans, or null for none
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings readBinFile(String filename, int maxWords, QuantizedVectorStore.Encoding quantize) throws IOException {
+        return readBinFile(filename, maxWords > 0 ? WordFilter.topN(maxWords) : WordFilter.ALL, quantize);
+    }
+
+    /**
+     * Read only the words of a word2vec binary file that pass a filter
+     * The vectors of other words are skipped without being decoded
+     * @param filename the binary file of embeddings
+     * @param filter decides which words to keep
+     * @param quantize the compact encoding to use for scans, or null for none (if not null, vectors are normalized first)
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings readBinFile(String filename, WordFilter filter, QuantizedVectorStore.Encoding quantize) throws IOException {
         LOGGER.info("Reading vectors from word2vec binary file...");
-        InputStream reader = new FileInputStream(filename);
-        char c;
-        String nWordsStr = "";
-        while(true) {
-            c = (char)reader.read();
-            if(c==' ') break;
-            nWordsStr += c;
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(Paths.get(filename), StandardOpenOption.READ))) {
+            String nWordsStr = reader.readToken((byte) ' ', StandardCharsets.US_ASCII);
+            String sizeStr = reader.readToken((byte) '\n', StandardCharsets.US_ASCII);
+            if(nWordsStr == null || sizeStr == null) {
+                throw new EOFException("Missing word2vec header in " + filename);
+            }
+            int nWords = Integer.parseInt(nWordsStr.trim());
+            int size = Integer.parseInt(sizeStr.trim());
+            // when words are filtered, the store grows with the rows actually kept
+            Embeddings wes = new Embeddings(size, filter == WordFilter.ALL ? nWords : 0);
+            float[] vector = new float[size];
+            StringBuilder form = new StringBuilder();
+            int i;
+            for(i=0; i<nWords && !filter.done(i); i++) {
+                int length = reader.readRawToken((byte) ' ');
+                if(length < 0) {
+                    throw new EOFException("Expected " + nWords + " words but found " + i);
+                }
+                boolean keep = filter.accept(i, Phrase.formOf(reader.tokenBytes(), 0, length, true, form));
+                if(keep) {
+                    reader.readFloats(vector);
+                } else {
+                    reader.skip(4L * size);
+                }
+                // For some files, there's an extra \n (such as those generated by the C word2vec)
+                // For others, there's no newline--it goes straight to the next word (the GoogleNews vectors, e.g.)
+                reader.skipIf((byte) '\n');
+                if(!keep) continue;
+                if (form.length() > 0) {
+                    // the vector is copied into the embeddings' storage, so the array can be reused
+                    wes.addWordAndEmbedding(Phrase.fromForm(form.toString()), vector);
+                }
+                else {
+                    LOGGER.info("Not including zero-length phrase in Embeddings (don't worry about it)");
+                }
+            }
+            LOGGER.info("Read " + wes.size() + " of " + i + " word vectors with " + size + " dimensions");
+            if(quantize != null) {
+                // encoded once, after normalizing; normalizing a quantized store would encode every row again
+                wes.normalizeAll();
+                wes.quantize(quantize);
+            }
+
+            return wes;
         }
-        String sizeStr = "";
-        while(true) {
-            c = (char)reader.read();
-            if(c=='\n') break;
-            sizeStr += c;
+    }
+
+    /**
+     * Open a word2vec binary file without reading its vectors onto the heap
+     * Only the words are parsed; vectors are read from the memory-mapped file as needed
+     * @param filename the binary file of embeddings
+     * @return an Embeddings object backed by the mapped file
+     * @throws IOException
+     */
+    public static Embeddings mapBinFile(String filename) throws IOException {
+        return mapBinFile(filename, WordFilter.ALL);
+    }
+
+    /**
+     * Open only the words of a word2vec binary file that pass a filter, without reading any vectors onto the heap
+     * @param filename the binary file of embeddings
+     * @param filter decides which words to keep
+     * @return an Embeddings object backed by the mapped file
+     * @throws IOException
+     */
+    public static Embeddings mapBinFile(String filename, WordFilter filter) throws IOException {
+        LOGGER.info("Mapping vectors from word2vec binary file...");
+        Records records = findRecords(filename, filter);
+        MappedVectorStore store = records.store;
+        Embeddings wes = new Embeddings(store);
+        Phrase[] phrases = new Phrase[records.nWords];
+        for(int i=0; i<records.nWords; i++) {
+            phrases[i] = decodeWord(store, records.wordOffsets[i]);
         }
-        int nWords = Integer.parseInt(nWordsStr);
-        if (maxWords > 0 && maxWords < nWords) {
-            nWords = maxWords;
+        addWords(wes, store, phrases);
+        LOGGER.info("Mapped " + records.nWords + " word vectors with " + records.size + " dimensions");
+
+        return wes;
+    }
+
+    /**
+     * Open a word2vec binary file for random access, reading vectors only when they are first used
+     * Words and vector positions come from the file's sidecar index (built and written on first use; see BinFileIndex),
+     *      so opening is fast and memory grows only with the number of vectors looked up
+     * The file stays open until close() is called on the returned Embeddings
+     * @param filename the binary file of embeddings
+     * @param cacheRows the most vectors to keep in memory at once
+     * @return an Embeddings object backed by the file
+     * @throws IOException
+     */
+    public static Embeddings openBinFile(String filename, int cacheRows) throws IOException {
+        BinFileIndex index = BinFileIndex.forFile(filename);
+        LazyVectorStore store = new LazyVectorStore(filename, index.dimensionality(), index.vectorOffsets(), cacheRows);
+        Embeddings wes = new Embeddings(store);
+        Phrase[] phrases = new Phrase[index.size()];
+        for(int i=0; i<phrases.length; i++) {
+            phrases[i] = Phrase.fromForm(index.word(i));
         }
-        int size = Integer.parseInt(sizeStr);
-        Embeddings wes = new Embeddings(size);
-        char firstchar = '\n';
-        byte[] bytes = new byte[size*4];
-        for(int i=0; i<nWords; i++) {
-            String word = "";
-            if(firstchar != '\n')
-                word += firstchar;
-            while((c = (char)reader.read()) != ' ') {
-                word += c;
+        addWords(wes, store, phrases);
+        LOGGER.info("Opened " + index.size() + " word vectors with " + index.dimensionality() + " dimensions");
+
+        return wes;
+    }
+
+    /**
+     * Read a word2vec binary file using every core
+     * The file is first scanned for the position of every word and vector; words and vectors are then decoded
+     *      in parallel, straight into the final storage. Gives the same result as readBinFile
+     * @param filename the binary file of embeddings
+     * @param maxWords the number of words to read (0 to read all of them)
+     * @param normalize true to scale every vector to unit length as it is read
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings readBinFileParallel(String filename, int maxWords, boolean normalize) throws IOException {
+        return readBinFileParallel(filename, maxWords > 0 ? WordFilter.topN(maxWords) : WordFilter.ALL, normalize);
+    }
+
+    /**
+     * Read only the words of a word2vec binary file that pass a filter, using every core
+     * Words are checked while the file is scanned for records; rows of other words are never decoded
+     * @param filename the binary file of embeddings
+     * @param filter decides which words to keep
+     * @param normalize true to scale every vector to unit length as it is read
+     * @return an Embeddings object
+     * @throws IOException
+     */
+    public static Embeddings readBinFileParallel(String filename, WordFilter filter, boolean normalize) throws IOException {
+        LOGGER.info("Reading vectors from word2vec binary file in parallel...");
+        Records records = findRecords(filename, filter);
+        int nWords = records.nWords;
+
+        HeapVectorStore store = new HeapVectorStore(records.size, nWords);
+        store.addRows(nWords);
+        Phrase[] phrases = new Phrase[nWords];
+        Threading.parallelFor(nWords, (begin, end) -> {
+            store.copyRowsFrom(records.store, begin, end);
+            if(normalize) {
+                store.normalizeRows(begin, end);
+            }
+            for(int i=begin; i<end; i++) {
+                phrases[i] = decodeWord(records.store, records.wordOffsets[i]);
             }
-            // Read in all bytes associated with this vector
-            reader.read(bytes, 0, size*4);
-            float vector[] = new float[size];
-            for(int j=0; j<size; j++) {
-                vector[j] = ByteBuffer.wrap(bytes, j*4, 4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+        });
+        if(normalize) {
+            store.markNormalized();
+        }
+
+        Embeddings wes = new Embeddings(store);
+        addWords(wes, store, phrases);
+        LOGGER.info("Read " + nWords + " word vectors with " + records.size + " dimensions");
+
+        return wes;
+    }
+
+    /**
+     * Positions of the words and vectors in a word2vec binary file
+     */
+    private static class Records {
+        // number of records kept
+        int nWords;
+        int size;
+        long[] wordOffsets;
+        // one row per record kept, including records whose words will turn out to be skipped
+        MappedVectorStore store;
+    }
+
+    /**
+     * Map a word2vec binary file and find the position of every record whose word passes a filter, without decoding any vectors
+     * @param filename the binary file of embeddings
+     * @param filter decides which records to keep
+     */
+    private static Records findRecords(String filename, WordFilter filter) throws IOException {
+        String header;
+        try (ChannelReader reader = new ChannelReader(FileChannel.open(Paths.get(filename), StandardOpenOption.READ), 1 << 12)) {
+            header = reader.readToken((byte) '\n', StandardCharsets.US_ASCII);
+        }
+        if(header == null) {
+            throw new EOFException("Missing word2vec header in " + filename);
+        }
+        String[] fields = header.trim().split(" ");
+        int nRecords = Integer.parseInt(fields[0]);
+        Records records = new Records();
+        records.size = Integer.parseInt(fields[1]);
+        records.wordOffsets = new long[filter == WordFilter.ALL ? nRecords : 16];
+        records.store = new MappedVectorStore(filename, records.size);
+
+        MappedVectorStore store = records.store;
+        long length = new File(filename).length();
+        long vectorBytes = 4L * records.size;
+        long pos = header.length() + 1;
+        byte[] wordBytes = new byte[64];
+        StringBuilder form = new StringBuilder();
+        for(int i=0; i<nRecords && !filter.done(i); i++) {
+            long wordOffset = pos;
+            int wordLength = 0;
+            while(true) {
+                if(pos >= length) {
+                    throw new EOFException("Expected " + nRecords + " words but found " + i);
+                }
+                byte b = store.getByte(pos++);
+                if(b == ' ') break;
+                if(wordLength == wordBytes.length) {
+                    wordBytes = Arrays.copyOf(wordBytes, 2 * wordLength);
+                }
+                wordBytes[wordLength++] = b;
             }
-            // For some files, there's an extra \n (such as those generated by the C word2vec)
-            // For others, there's no newline--it goes straight to the next word (the GoogleNews vectors, e.g.)
-            firstchar = (char) reader.read();
-            Phrase newPhrase = new Phrase(word, "_+");
-            if (newPhrase.length() > 0) {
-                wes.addWordAndEmbedding(newPhrase, new WordEmbedding(vector));
+            if(pos + vectorBytes > length) {
+                throw new EOFException("File ended in the middle of a vector");
+            }
+            if(filter == WordFilter.ALL || filter.accept(i, Phrase.formOf(wordBytes, 0, wordLength, true, form))) {
+                if(records.nWords == records.wordOffsets.length) {
+                    records.wordOffsets = Arrays.copyOf(records.wordOffsets, 2 * records.nWords);
+                }
+                records.wordOffsets[records.nWords++] = wordOffset;
+                store.addRowAt(pos);
+            }
+            pos += vectorBytes;
+            // skip the newline that some files have after each vector (see readBinFile)
+            if(pos < length && store.getByte(pos) == '\n') pos++;
+        }
+        return records;
+    }
+
+    /**
+     * Decode the word beginning at a given position of a mapped file (up to the space that follows it)
+     */
+    private static Phrase decodeWord(MappedVectorStore store, long offset) {
+        int length = 0;
+        while(store.getByte(offset + length) != ' ') {
+            length++;
+        }
+        byte[] wordBytes = new byte[length];
+        for(int j=0; j<length; j++) {
+            wordBytes[j] = store.getByte(offset + j);
+        }
+        return new Phrase(new String(wordBytes, StandardCharsets.UTF_8), "_+");
+    }
+
+    /**
+     * Add words to an Embeddings object in file order (so indices match those of readBinFile),
+     *      then drop the rows of words that were skipped (empty or repeated)
+     * @param wes an Embeddings object with no words yet, on top of store
+     * @param store the store, with one row per phrase
+     * @param phrases the decoded word of every row
+     */
+    private static void addWords(Embeddings wes, VectorStore store, Phrase[] phrases) {
+        int[] keep = new int[phrases.length];
+        int nKept = 0;
+        for(int i=0; i<phrases.length; i++) {
+            if (phrases[i].length() > 0) {
+                if(wes.addWord(phrases[i])) {
+                    keep[nKept++] = i;
+                }
             }
             else {
                 LOGGER.info("Not including zero-length phrase in Embeddings (don't worry about it)");
             }
         }
-        LOGGER.info("Read " + nWords + " word vectors with " + sizeStr + " dimensions");
-
-        return wes;
+        if(nKept < phrases.length) {
+            store.retain(Arrays.copyOf(keep, nKept));
+        }
     }
 
     /**
@@ -80,18 +322,7 @@ public class Word2vecReader {
      * @throws IOException
      */
     public static Embeddings readBinFile(String binFile, String vocabFile, int minFreq) throws IOException {
-        BufferedReader vocabReader = new BufferedReader(new FileReader(vocabFile));
-        String line;
-        int howManyWords = 0;
-        while((line = vocabReader.readLine()) != null) {
-            String[] fields = line.split("\\s+");
-            if(Integer.parseInt(fields[1]) < minFreq) {
-                return readBinFile(binFile, howManyWords);
-            }
-            howManyWords++;
-        }
-        LOGGER.warning("No words less than specified minimum frequency; reading all words");
-        return readBinFile(binFile, 0);
+        return readBinFile(binFile, WordFilter.minCount(vocabFile, minFreq), null);
     }
 
     /**
@@ -2,132 +2,405 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
  * Class for representing word embeddings and performing computations on them
+ * An embedding either owns its own array or is a view onto one row of an Embeddings' backing store;
+ * changes made through a view are visible in the Embeddings object
  * Created by gpfinley on 3/14/16.
  */
 public class WordEmbedding implements Serializable {
 
+    // the value computed for the original class, whose serialized form (the vector's floats) is unchanged
+    private static final long serialVersionUID = 7892488297038553054L;
+
+    /**
+     * Accumulate dot products, magnitudes and distances in float rather than double precision
+     * Roughly twice as fast on most hardware, at the cost of about three fewer significant digits
+     * Fixed at startup with the JVM argument -DfloatAccumulation=true
+     */
+    public static final boolean FLOAT_ACCUMULATION = Boolean.getBoolean("floatAccumulation");
+
     private float[] vector;
+    private int offset;
+    private int size;
+    // magnitude of a standalone vector, once computed (negative until then, and after any change); unused for views
+    private transient double mag = -1;
+    // for a view onto a row of a store: the store and row, so the store's cached magnitude can be used and invalidated
+    private transient VectorStore owner;
+    private transient int row;
 
     public WordEmbedding(int dimensionality) {
         this(new float[dimensionality]);
     }
 
     public WordEmbedding(float[] vector) {
-        this.vector = Arrays.copyOf(vector, vector.length);
+        this(Arrays.copyOf(vector, vector.length), 0, vector.length);
     }
 
     public WordEmbedding(WordEmbedding orig) {
-        vector = new float[orig.size()];
-        for(int i=0; i < vector.length; i++) {
-            vector[i] = (float)orig.get(i);
-        }
+        this(orig.toArray(), 0, orig.size());
+        mag = orig.mag;
+    }
+
+    private WordEmbedding(float[] vector, int offset, int size) {
+        this.vector = vector;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * Create an embedding that reads and writes directly to part of an existing array (no copying)
+     * @param data an array holding one or more vectors
+     * @param offset the index in data at which this vector begins
+     * @param size the dimensionality of the vector
+     * @return a view onto data
+     */
+    static WordEmbedding view(float[] data, int offset, int size) {
+        return new WordEmbedding(data, offset, size);
+    }
+
+    /**
+     * Create a view onto a row of a store, which shares the store's cached magnitude for the row
+     * Changing the view invalidates the store's cached magnitude
+     * @param store the store that data belongs to
+     * @param row the row of the store that this is a view onto
+     */
+    static WordEmbedding view(float[] data, int offset, int size, VectorStore store, int row) {
+        WordEmbedding view = new WordEmbedding(data, offset, size);
+        view.owner = store;
+        view.row = row;
+        return view;
     }
 
     public double get(int i) {
-        return (double)vector[i];
+        return (double)vector[offset + i];
     }
 
     public int size() {
-        return vector.length;
+        return size;
+    }
+
+    /**
+     * Copy the values of this embedding into an array
+     * @param dest the array to write to
+     * @param destOffset the index in dest at which to start writing
+     */
+    public void copyTo(float[] dest, int destOffset) {
+        System.arraycopy(vector, offset, dest, destOffset, size);
+    }
+
+    public float[] toArray() {
+        return Arrays.copyOfRange(vector, offset, offset + size);
     }
 
     public void normalize() {
         double mag = mag();
         if(mag == 0) return;
-        for(int i=0; i<vector.length; i++) {
+        for(int i=offset; i<offset+size; i++) {
             vector[i] /= mag;
         }
+        changed();
     }
 
+    /**
+     * Magnitude of this vector, computed once and then cached until the vector is changed
+     * A view always asks its store, whose cached magnitude is forgotten whenever the row changes by any means
+     *      (through another view, or by normalizing the store)
+     */
     public double mag() {
-        double sqsum = 0;
-        for(double x : vector) {
-            sqsum += x * x;
+        if(owner != null) {
+            return owner.norm(row);
+        }
+        if(mag < 0) {
+            mag = computeMag();
+        }
+        return mag;
+    }
+
+    /**
+     * Magnitude of this vector, computed from scratch
+     */
+    double computeMag() {
+        return Math.sqrt(dot(vector, offset, vector, offset, size));
+    }
+
+    private boolean hasMag() {
+        return mag >= 0 || owner != null;
+    }
+
+    /**
+     * Forget the cached magnitude (and the store's, for a view)
+     */
+    private void changed() {
+        mag = -1;
+        if(owner != null) {
+            owner.invalidateNorm(row);
         }
-        return Math.sqrt(sqsum);
     }
 
     public double dot(WordEmbedding other) {
+        return dot(vector, offset, other.vector, other.offset, size);
+    }
+
+    /**
+     * Dot product with part of an array, such as a row of an Embeddings' backing store
+     * @param data an array holding one or more vectors
+     * @param dataOffset the index in data at which the other vector begins
+     * @return the dot product
+     */
+    public double dot(float[] data, int dataOffset) {
+        return dot(vector, offset, data, dataOffset, size);
+    }
+
+    /**
+     * Dot product with floats stored in a buffer, such as a memory-mapped file
+     * Accumulates exactly as the array kernel does, so the result is the same as for a copy of the floats in an array
+     * @param data a buffer with the correct byte order set
+     * @param position the absolute byte position in data at which the other vector begins
+     * @return the dot product
+     */
+    public double dot(ByteBuffer data, int position) {
+        float[] a = vector;
+        int i = offset, p = position, end = offset + (size & ~3);
+        if(FLOAT_ACCUMULATION) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for(; i < end; i += 4, p += 16) {
+                s0 += a[i] * data.getFloat(p);
+                s1 += a[i + 1] * data.getFloat(p + 4);
+                s2 += a[i + 2] * data.getFloat(p + 8);
+                s3 += a[i + 3] * data.getFloat(p + 12);
+            }
+            for(; i < offset + size; i++, p += 4) {
+                s0 += a[i] * data.getFloat(p);
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for(; i < end; i += 4, p += 16) {
+            s0 += (double) a[i] * data.getFloat(p);
+            s1 += (double) a[i + 1] * data.getFloat(p + 4);
+            s2 += (double) a[i + 2] * data.getFloat(p + 8);
+            s3 += (double) a[i + 3] * data.getFloat(p + 12);
+        }
+        for(; i < offset + size; i++, p += 4) {
+            s0 += (double) a[i] * data.getFloat(p);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product with a row of 8-bit codes (see QuantizedVectorStore), before applying the row's scale factor
+     * @param codes an array holding one or more rows of codes
+     * @param codeOffset the index in codes at which the row begins
+     * @return the unscaled dot product
+     */
+    public double dot(byte[] codes, int codeOffset) {
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = offset, j = codeOffset;
+        for(int end = offset + (size & ~3); i < end; i += 4, j += 4) {
+            s0 += (double) vector[i] * codes[j];
+            s1 += (double) vector[i + 1] * codes[j + 1];
+            s2 += (double) vector[i + 2] * codes[j + 2];
+            s3 += (double) vector[i + 3] * codes[j + 3];
+        }
+        for(; i < offset + size; i++, j++) {
+            s0 += (double) vector[i] * codes[j];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Dot product with a row of half-precision floats (see QuantizedVectorStore)
+     * @param halves an array holding one or more rows of half-precision values
+     * @param halfOffset the index in halves at which the row begins
+     * @return the dot product
+     */
+    public double dotHalf(short[] halves, int halfOffset) {
         double sum = 0;
-        for(int i=0; i<vector.length; i++) {
-            sum += vector[i] * other.get(i);
+        for(int i=offset, j=halfOffset; i<offset+size; i++, j++) {
+            sum += (double) vector[i] * QuantizedVectorStore.halfToFloat(halves[j]);
         }
         return sum;
     }
 
     public WordEmbedding sum(WordEmbedding other) {
-        float[] sum = Arrays.copyOf(vector, vector.length);
-        for(int i=0; i<vector.length; i++) {
-            sum[i] += other.get(i);
-        }
-        return new WordEmbedding(sum);
+        WordEmbedding sum = new WordEmbedding(this);
+        sum.add(other);
+        return sum;
     }
 
     public WordEmbedding hadamard(WordEmbedding other) {
         WordEmbedding prod = new WordEmbedding(this);
-        for(int i=0; i<vector.length; i++) {
-            prod.vector[i] *= other.vector[i];
+        for(int i=0; i<size; i++) {
+            prod.vector[i] *= other.vector[other.offset + i];
         }
+        prod.changed();
         return prod;
     }
 
     public WordEmbedding difference(WordEmbedding other) {
-        float[] diff = Arrays.copyOf(vector, vector.length);
-        for(int i=0; i<vector.length; i++) {
-            diff[i] -= other.get(i);
-        }
-        return new WordEmbedding(diff);
+        WordEmbedding diff = new WordEmbedding(this);
+        diff.subtract(other);
+        return diff;
     }
 
     public void add(WordEmbedding other) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] += other.get(i);
+        for(int i=offset, j=other.offset; i<offset+size; i++, j++) {
+            vector[i] += other.vector[j];
         }
+        changed();
     }
 
     public void add(double addend) {
-        for(int i=0; i<vector.length; i++) {
+        for(int i=offset; i<offset+size; i++) {
             vector[i] += addend;
         }
+        changed();
     }
 
     public void subtract(WordEmbedding other) {
-        for(int i=0; i<vector.length; i++) {
-            vector[i] -= other.get(i);
+        for(int i=offset, j=other.offset; i<offset+size; i++, j++) {
+            vector[i] -= other.vector[j];
         }
+        changed();
     }
 
     public void scalarMultiply(double s) {
-        for(int i=0; i<vector.length; i++)
+        for(int i=offset; i<offset+size; i++)
             vector[i] *= s;
+        changed();
     }
 
+    /**
+     * Cosine similarity. A single dot product when both magnitudes are cached (e.g. rows of an Embeddings object);
+     *      otherwise computed in a single pass over both vectors, which gives exactly the same result
+     */
     public double cosSim(WordEmbedding other) {
-        return dot(other) / mag() / other.mag();
+        if(hasMag() && other.hasMag()) {
+            return dot(other) / mag() / other.mag();
+        }
+        float[] a = vector;
+        float[] b = other.vector;
+        int i = offset, j = other.offset, end = offset + (size & ~3);
+        double dot, aa, bb;
+        if(FLOAT_ACCUMULATION) {
+            float d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            float a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            float b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+            for(; i < end; i += 4, j += 4) {
+                d0 += a[i] * b[j];         a0 += a[i] * a[i];         b0 += b[j] * b[j];
+                d1 += a[i + 1] * b[j + 1]; a1 += a[i + 1] * a[i + 1]; b1 += b[j + 1] * b[j + 1];
+                d2 += a[i + 2] * b[j + 2]; a2 += a[i + 2] * a[i + 2]; b2 += b[j + 2] * b[j + 2];
+                d3 += a[i + 3] * b[j + 3]; a3 += a[i + 3] * a[i + 3]; b3 += b[j + 3] * b[j + 3];
+            }
+            for(; i < offset + size; i++, j++) {
+                d0 += a[i] * b[j];         a0 += a[i] * a[i];         b0 += b[j] * b[j];
+            }
+            dot = (d0 + d1) + (d2 + d3);
+            aa = (a0 + a1) + (a2 + a3);
+            bb = (b0 + b1) + (b2 + b3);
+        } else {
+            double d0 = 0, d1 = 0, d2 = 0, d3 = 0;
+            double a0 = 0, a1 = 0, a2 = 0, a3 = 0;
+            double b0 = 0, b1 = 0, b2 = 0, b3 = 0;
+            for(; i < end; i += 4, j += 4) {
+                double x0 = a[i], x1 = a[i + 1], x2 = a[i + 2], x3 = a[i + 3];
+                double y0 = b[j], y1 = b[j + 1], y2 = b[j + 2], y3 = b[j + 3];
+                d0 += x0 * y0; a0 += x0 * x0; b0 += y0 * y0;
+                d1 += x1 * y1; a1 += x1 * x1; b1 += y1 * y1;
+                d2 += x2 * y2; a2 += x2 * x2; b2 += y2 * y2;
+                d3 += x3 * y3; a3 += x3 * x3; b3 += y3 * y3;
+            }
+            for(; i < offset + size; i++, j++) {
+                double x = a[i], y = b[j];
+                d0 += x * y; a0 += x * x; b0 += y * y;
+            }
+            dot = (d0 + d1) + (d2 + d3);
+            aa = (a0 + a1) + (a2 + a3);
+            bb = (b0 + b1) + (b2 + b3);
+        }
+        return dot / Math.sqrt(aa) / Math.sqrt(bb);
     }
 
     public double euclidDist(WordEmbedding other) {
-        double diff = 0;
-        for(int i=0; i<vector.length; i++) {
-            diff += Math.pow(vector[i] - other.get(i), 2);
+        float[] a = vector;
+        float[] b = other.vector;
+        int i = offset, j = other.offset, end = offset + (size & ~3);
+        if(FLOAT_ACCUMULATION) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for(; i < end; i += 4, j += 4) {
+                float x0 = a[i] - b[j], x1 = a[i + 1] - b[j + 1], x2 = a[i + 2] - b[j + 2], x3 = a[i + 3] - b[j + 3];
+                s0 += x0 * x0;
+                s1 += x1 * x1;
+                s2 += x2 * x2;
+                s3 += x3 * x3;
+            }
+            for(; i < offset + size; i++, j++) {
+                float x = a[i] - b[j];
+                s0 += x * x;
+            }
+            return Math.sqrt((s0 + s1) + (s2 + s3));
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for(; i < end; i += 4, j += 4) {
+            double x0 = a[i] - b[j], x1 = a[i + 1] - b[j + 1], x2 = a[i + 2] - b[j + 2], x3 = a[i + 3] - b[j + 3];
+            s0 += x0 * x0;
+            s1 += x1 * x1;
+            s2 += x2 * x2;
+            s3 += x3 * x3;
+        }
+        for(; i < offset + size; i++, j++) {
+            double x = a[i] - b[j];
+            s0 += x * x;
+        }
+        return Math.sqrt((s0 + s1) + (s2 + s3));
+    }
+
+    /**
+     * The kernel behind every float-by-float dot product and magnitude
+     * Four independent accumulators let the processor overlap the additions (and the JIT vectorize them)
+     */
+    private static double dot(float[] a, int aOffset, float[] b, int bOffset, int size) {
+        int i = aOffset, j = bOffset, end = aOffset + (size & ~3);
+        if(FLOAT_ACCUMULATION) {
+            float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            for(; i < end; i += 4, j += 4) {
+                s0 += a[i] * b[j];
+                s1 += a[i + 1] * b[j + 1];
+                s2 += a[i + 2] * b[j + 2];
+                s3 += a[i + 3] * b[j + 3];
+            }
+            for(; i < aOffset + size; i++, j++) {
+                s0 += a[i] * b[j];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for(; i < end; i += 4, j += 4) {
+            s0 += (double) a[i] * b[j];
+            s1 += (double) a[i + 1] * b[j + 1];
+            s2 += (double) a[i + 2] * b[j + 2];
+            s3 += (double) a[i + 3] * b[j + 3];
+        }
+        for(; i < aOffset + size; i++, j++) {
+            s0 += (double) a[i] * b[j];
         }
-        return Math.sqrt(diff);
+        return (s0 + s1) + (s2 + s3);
     }
 
     @Override
     public String toString() {
-        return Arrays.toString(vector);
+        return Arrays.toString(toArray());
     }
 
     @Override
     public boolean equals(Object other) {
         if(!(other instanceof WordEmbedding)) return false;
-        for(int i=0; i<vector.length; i++) {
-            if(vector[i] != ((WordEmbedding)other).get(i)) {
+        for(int i=0; i<size; i++) {
+            if(vector[offset + i] != ((WordEmbedding)other).get(i)) {
                 return false;
             }
         }
@@ -140,10 +413,13 @@ public class WordEmbedding implements Serializable {
      * @throws IOException
      */
     private void writeObject(ObjectOutputStream stream) throws IOException {
-        stream.writeObject(vector);
+        stream.writeObject(toArray());
     }
     private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
         vector = (float[]) stream.readObject();
+        offset = 0;
+        size = vector.length;
+        mag = -1;
     }
 
 }
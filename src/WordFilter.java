@@ -0,0 +1,128 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * Decides which words to keep while an embeddings file is being read
+ * Readers ask before creating any Phrase or vector for a word, so rows that are turned down cost only a scan over their bytes
+ */
+@FunctionalInterface
+public interface WordFilter {
+
+    WordFilter ALL = (rank, phrase) -> true;
+
+    /**
+     * @param rank the position of the word in the file (0 for the first word)
+     * @param phrase the word as a Phrase would store it (words separated by spaces). Only valid during the call
+     * @return true to keep the word
+     */
+    boolean accept(int rank, CharSequence phrase);
+
+    /**
+     * @param rank the position of the next word in the file
+     * @return true if no word from this position on can be accepted (so the rest of the file can be skipped)
+     */
+    default boolean done(int rank) {
+        return false;
+    }
+
+    /**
+     * @return a filter accepting only the words accepted by both this filter and another
+     */
+    default WordFilter and(WordFilter other) {
+        WordFilter self = this;
+        return new WordFilter() {
+            @Override
+            public boolean accept(int rank, CharSequence phrase) {
+                return self.accept(rank, phrase) && other.accept(rank, phrase);
+            }
+            @Override
+            public boolean done(int rank) {
+                return self.done(rank) || other.done(rank);
+            }
+        };
+    }
+
+    /**
+     * @param n the number of words to keep
+     * @return a filter accepting the first n words of the file
+     */
+    static WordFilter topN(int n) {
+        return new WordFilter() {
+            @Override
+            public boolean accept(int rank, CharSequence phrase) {
+                return rank < n;
+            }
+            @Override
+            public boolean done(int rank) {
+                return rank >= n;
+            }
+        };
+    }
+
+    /**
+     * @param words the words to keep (Phrases, or strings with words separated by spaces or underscores)
+     * @return a filter accepting only those words
+     */
+    static WordFilter vocabulary(Collection<?> words) {
+        PhraseIndex index = new PhraseIndex(words.size());
+        StringBuilder form = new StringBuilder();
+        for(Object word : words) {
+            if(word instanceof Phrase) {
+                index.add(word.toString());
+            } else {
+                index.add(Phrase.formOf(word.toString(), false, form).toString());
+            }
+        }
+        return (rank, phrase) -> index.indexOf(phrase) >= 0;
+    }
+
+    /**
+     * Keep the words that occur at least a certain number of times, according to a word2vec vocab file
+     * Assumes the vocab file is sorted by descending count and in the same order as the vectors file, as word2vec writes them
+     * @param vocabFile a file with a word and its count on every line
+     * @param minCount the minimum number of occurrences
+     * @return a filter accepting the words before the first one with too few occurrences
+     * @throws IOException
+     */
+    static WordFilter minCount(String vocabFile, int minCount) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(vocabFile))) {
+            Pattern splitter = Pattern.compile("\\s+");
+            String line;
+            int n = 0;
+            while((line = reader.readLine()) != null) {
+                if(Integer.parseInt(splitter.split(line)[1]) < minCount) {
+                    return topN(n);
+                }
+                n++;
+            }
+            return ALL;
+        }
+    }
+
+    /**
+     * Keep only the words used in an analogies file (lines of four words; lines starting with ':' name categories)
+     * @param analogiesFile the analogies file
+     * @param caseSensitive false to lowercase the analogies, as AnalogyExperiment does
+     * @return a filter accepting the words of the analogies
+     * @throws IOException
+     */
+    static WordFilter analogyWords(String analogiesFile, boolean caseSensitive) throws IOException {
+        PhraseIndex index = new PhraseIndex();
+        StringBuilder form = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new FileReader(analogiesFile))) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(line.startsWith(":")) continue;
+                if(!caseSensitive) line = line.toLowerCase();
+                for(String word : line.trim().split(" ")) {
+                    // in Phrase form, as Analogy reads it (new_york -> "new york")
+                    index.add(Phrase.formOf(word, false, form).toString());
+                }
+            }
+        }
+        return (rank, phrase) -> index.indexOf(phrase) >= 0;
+    }
+}
@@ -2,9 +2,17 @@ import com.sun.istack.internal.Nullable;
 import org.kohsuke.args4j.Option;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.function.IntFunction;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 /**
  * Simple API for parsing WordNet 3.0
@@ -14,17 +22,22 @@ import java.util.*;
  */
 public class WordNet {
 
+    private static Logger LOGGER = Logger.getLogger(WordNet.class.getName());
+
+    /*
+     * The classes below are views of the graph: they are created when needed and hold little more than an id,
+     *      so two views of the same lemma, sense or synset are equal but not identical
+     */
     class Lemma {
+        public final int id;
         public final String form;
         public final String pos;
-        public List<Sense> senses;
-        Lemma(String form, String pos) {
-            this.form = form;
-            this.pos = pos;
-            senses = new ArrayList<>();
-        }
-        public void addSense(Synset synset) {
-            senses.add(new Sense(this, senses.size(), synset));
+        public final List<Sense> senses;
+        Lemma(int id) {
+            this.id = id;
+            form = graph.formString(graph.lemmaForm(id));
+            pos = graph.lemmaPos(id);
+            senses = new IdList<>(graph.senseBegin(id), graph.senseEnd(id), Sense::new);
         }
         @Override
         public String toString() {
@@ -32,35 +45,41 @@ public class WordNet {
         }
         @Override
         public int hashCode() {
-            return toString().hashCode();
+            return id;
         }
-        // be careful! This could cause problems if multiple versions of the same word exist with different sense lists
         @Override
         public boolean equals(Object other) {
-            return toString().equals(other.toString());
+            return other instanceof Lemma && ((Lemma) other).id == id;
         }
 
     }
     class Sense {
+        public final int id;
         public final Lemma lemma;
         public final int number;
         public final Synset synset;
-        public List<LexPointer> pointers;
-        public int frequency;       // from WordNet's cntlist
-        public Sense(Lemma lemma, int number, Synset synset) {
-            this.lemma = lemma;
-            this.number = number;
-            this.synset = synset;
-            pointers = new ArrayList<>();
+        public final List<LexPointer> pointers;
+        public final int frequency;       // from WordNet's cntlist
+        Sense(int id) {
+            this.id = id;
+            lemma = new Lemma(graph.senseLemma(id));
+            number = id - graph.senseBegin(lemma.id);
+            synset = graph.senseSynset(id) < 0 ? null : new Synset(graph.senseSynset(id));
+            pointers = new IdList<>(graph.lexBegin(id), graph.lexEnd(id),
+                    i -> new LexPointer(new Sense(graph.lexTarget(i)), graph.typeName(graph.lexType(i))));
+            frequency = graph.senseFrequency(id);
         }
         @Override
         public String toString() {
             return lemma.form + "_" + lemma.pos + "_" + number;
         }
-        // careful...
+        @Override
+        public int hashCode() {
+            return id;
+        }
         @Override
         public boolean equals(Object other) {
-            return toString().equals(other.toString());
+            return other instanceof Sense && ((Sense) other).id == id;
         }
     }
     class LexPointer {
@@ -88,16 +107,52 @@ public class WordNet {
         }
     }
     class Synset {
-        public List<Sense> senses = new ArrayList<>();
-        public List<SemPointer> pointers = new ArrayList<>();
-        public String pos;
-        public Synset(String pos) {
-            this.pos = pos;
+        public final int id;
+        public final List<Sense> senses;
+        public final List<SemPointer> pointers;
+        public final String pos;
+        Synset(int id) {
+            this.id = id;
+            senses = new IdList<>(graph.synsetSenseBegin(id), graph.synsetSenseEnd(id), i -> new Sense(graph.synsetSense(i)));
+            pointers = new IdList<>(graph.semBegin(id), graph.semEnd(id),
+                    i -> new SemPointer(graph.semTarget(i) < 0 ? null : new Synset(graph.semTarget(i)), graph.typeName(graph.semType(i))));
+            pos = graph.synsetPos(id);
         }
         @Override
         public String toString() {
             return "Synset with senses: " + this.senses.toString();
         }
+        @Override
+        public int hashCode() {
+            return id;
+        }
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Synset && ((Synset) other).id == id;
+        }
+    }
+
+    /**
+     * Read-only list of the views of a range of ids
+     */
+    private static class IdList<T> extends AbstractList<T> {
+        private final int begin;
+        private final int end;
+        private final IntFunction<T> view;
+        IdList(int begin, int end, IntFunction<T> view) {
+            this.begin = begin;
+            this.end = end;
+            this.view = view;
+        }
+        @Override
+        public T get(int i) {
+            if(i < 0 || i >= end - begin) throw new IndexOutOfBoundsException("Index " + i + ", size " + (end - begin));
+            return view.apply(begin + i);
+        }
+        @Override
+        public int size() {
+            return end - begin;
+        }
     }
     class Pair implements Comparable<Pair> {
         public final String w1;
@@ -164,22 +219,36 @@ public class WordNet {
         posMorphReplacements.put("r", new HashMap<String, String>());
     }
 
-    private Map<String, Map<String, Lemma>> lemmasByPos;
-    private Set<Lemma> allLemmas;
-//    private Set<Synset> allSynsets;
+    private static final String SNAPSHOT_FILE = "dict.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x574e5350;
+    private static final int SNAPSHOT_VERSION = 2;
+
+    private WordNetGraph graph;
+    // CRC-32 of the database files, identifying the version of WordNet loaded
+    private long checksum;
     private Map<String, Map<String, String>> morphExceptionReplacementsByPos;
     private Set<String> allowableWords = null;
 
     private final static double MIN_COUNT = 0.1;
 
+    // the same words and pairs come up over and over in analogy files, so per-word and per-pair results are cached
+    private final static int DEFAULT_CACHE_CAPACITY = 1 << 18;
+    private final static int CACHE_FILE_MAGIC = 0x574e4343;
+    private ScoreCache<String, int[]> lemmaCache;
+    private ScoreCache<String, Double> entropyCache;
+    private ScoreCache<String, Double> prosCache;
+
+    private SenseRelationIndex senseRelations;
+
     /**
      * Find the number of senses of a given word
      * @param word
      * @return
      */
     public int numSenses(String pos, String word) {
-        if(!lemmasByPos.containsKey(pos) || !lemmasByPos.get(pos).containsKey(word)) return 0;
-        return lemmasByPos.get(pos).get(word).senses.size();
+        int lemma = graph.lemma(pos, word);
+        if(lemma < 0) return 0;
+        return graph.senseEnd(lemma) - graph.senseBegin(lemma);
     }
 
     public void setAllowableWords(Set<String> allowableWords) {
@@ -187,7 +256,7 @@ public class WordNet {
     }
 
     public void printAntonyms(String pos, String word) {
-        for(Sense sense : lemmasByPos.get(pos).get(word).senses) {
+        for(Sense sense : new Lemma(graph.lemma(pos, word)).senses) {
             for(LexPointer pointer : sense.pointers) {
                 if(pointer.type.equals("!")) {
                     System.out.println(sense + " is an antonym of " + pointer.target + " " + pointer.type);
@@ -227,38 +296,50 @@ public class WordNet {
         Map<String, Double> wordEntropy = new HashMap<>();
 
         System.out.println("Finding all pairs with this relation...");
-        for(Lemma lemma : allLemmas) {
-            if(!wordEntropy.containsKey(lemma.form)) {
-                wordEntropy.put(lemma.form, getEntropyOverLemmas(lemma.form));
+        // no pointer has the relation if it has no code
+        byte relationCode = graph.typeCode(relation);
+        for(int lemma=0; lemma<graph.lemmaCount(); lemma++) {
+            int form = graph.lemmaForm(lemma);
+            String lemmaForm = graph.formString(form);
+            if(!wordEntropy.containsKey(lemmaForm)) {
+                wordEntropy.put(lemmaForm, getEntropyOverLemmas(lemmaForm));
             }
-            if(allowableWords != null && !allowableWords.contains(lemma.form)) {
+            if(allowableWords != null && !allowableWords.contains(lemmaForm)) {
                 continue;
             }
-            if(restrictPos != null && !restrictPos.contains(lemma.pos)) {
+            if(restrictPos != null && !restrictPos.contains(graph.lemmaPos(lemma))) {
                 continue;
             }
-            for(Sense sense : lemma.senses) {
-                for(LexPointer pointer : sense.pointers) {
-                    if(allowableWords != null && !allowableWords.contains(pointer.target.lemma.form)) {
+            for(int sense=graph.senseBegin(lemma); sense<graph.senseEnd(lemma); sense++) {
+                for(int pointer=graph.lexBegin(sense); pointer<graph.lexEnd(sense); pointer++) {
+                    int targetForm = graph.senseForm(graph.lexTarget(pointer));
+                    String targetFormString = graph.formString(targetForm);
+                    if(allowableWords != null && !allowableWords.contains(targetFormString)) {
                         continue;
                     }
-                    Pair pair = new Pair(sense.lemma.form, pointer.target.lemma.form);
-                    if(!pair.w1.equals(pair.w2)) {
-                        if (pointer.type.equals(relation)) {
+                    if(form != targetForm) {
+                        Pair pair = new Pair(lemmaForm, targetFormString);
+                        if (graph.lexType(pointer) == relationCode) {
                             pairs.add(pair);
                         } else {
                             hasOtherRelation.add(pair);
                         }
                     }
                 }
-                for(SemPointer pointer : sense.synset.pointers) {
-                    for(Sense pointedSense : pointer.target.senses) {
-                        if(allowableWords != null && !allowableWords.contains(pointedSense.lemma.form)) {
+                int synset = graph.senseSynset(sense);
+                if(synset < 0) continue;
+                for(int pointer=graph.semBegin(synset); pointer<graph.semEnd(synset); pointer++) {
+                    int target = graph.semTarget(pointer);
+                    if(target < 0) continue;
+                    for(int i=graph.synsetSenseBegin(target); i<graph.synsetSenseEnd(target); i++) {
+                        int targetForm = graph.senseForm(graph.synsetSense(i));
+                        String targetFormString = graph.formString(targetForm);
+                        if(allowableWords != null && !allowableWords.contains(targetFormString)) {
                             continue;
                         }
-                        Pair pair = new Pair(sense.lemma.form, pointedSense.lemma.form);
-                        if(!pair.w1.equals(pair.w2)) {
-                            if (pointer.type.equals(relation)) {
+                        if(form != targetForm) {
+                            Pair pair = new Pair(lemmaForm, targetFormString);
+                            if (graph.semType(pointer) == relationCode) {
                                 pairs.add(pair);
                             } else {
                                 hasOtherRelation.add(pair);
@@ -326,183 +407,149 @@ public class WordNet {
 
     /**
      * Constructor reads in the entire core of the WordNet database (all data.* and index.* files)
+     * The parsed database is saved to a snapshot file in wordNetHome, which later runs load instead
+     *      for as long as the database files stay the same
      * @param wordNetHome the directory containing WordNet (this directory should contain a "dict" folder w/ DB files)
      * @throws IOException
      */
     public WordNet(String wordNetHome) throws IOException {
 
-        lemmasByPos = new HashMap<>();
-
-        Map<String, Map<String, Synset>> posOffsetSynsetMap = new HashMap<>();
+        setCacheCapacity(DEFAULT_CACHE_CAPACITY);
 
         Path wordNetDict = Paths.get(wordNetHome).resolve("dict");
-
-        String[] poses = {"n", "a", "v", "r"};
-        for(String pos : poses) {
-            lemmasByPos.put(pos, new HashMap<String, Lemma>());
-        }
-
-        // Load up all the synset offsets from all parts of speech before doing anything else
-        for(String pos : poses) {
-            posOffsetSynsetMap.put(pos, new HashMap<String, Synset>());
-            Path dataFile = wordNetDict.resolve("data." + shortLongPos.get(pos));
-            BufferedReader reader = new BufferedReader(new FileReader(dataFile.toFile()));
-            String line;
-            while((line = reader.readLine()) != null) {
-                if (line.startsWith("  ")) continue;
-                String[] fields = line.split(" ");
-                posOffsetSynsetMap.get(pos).put(fields[0], new Synset(pos));
+        File snapshot = Paths.get(wordNetHome).resolve(SNAPSHOT_FILE).toFile();
+        checksum = checksum(wordNetDict);
+        boolean loaded = false;
+        if(snapshot.isFile()) {
+            try {
+                loaded = readSnapshot(snapshot, checksum);
+                if(!loaded) LOGGER.info("WordNet snapshot " + snapshot + " is out of date; rebuilding it");
+            } catch(IOException e) {
+                LOGGER.warning("Could not read WordNet snapshot " + snapshot + ": " + e.getMessage());
             }
         }
-
-        // Find all lemmas from the index files, then all sense information from the data files
-        for(String pos : poses) {
-            Path indexFile = wordNetDict.resolve("index." + shortLongPos.get(pos));
-            BufferedReader reader = new BufferedReader(new FileReader(indexFile.toFile()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("  ")) continue;
-                String[] fields = line.split(" ");
-                Lemma thisLemma = new Lemma(fields[0], fields[1]);
-                int pointerTypes = Integer.parseInt(fields[3]);
-                String[] synsetOffsets = Arrays.copyOfRange(fields, pointerTypes + 6, fields.length);
-                for (String offset : synsetOffsets) {
-                    Synset thisSynset = posOffsetSynsetMap.get(pos).get(offset);
-                    thisLemma.addSense(thisSynset);
-                    posOffsetSynsetMap.get(pos).put(offset, thisSynset);
-                }
-                lemmasByPos.get(pos).put(fields[0], thisLemma);
+        if(!loaded) {
+            graph = WordNetGraph.parse(wordNetDict);
+            readMorphExceptions(wordNetDict);
+            indexSenseRelations();
+            try {
+                writeSnapshot(snapshot, checksum);
+            } catch(IOException e) {
+                LOGGER.warning("Could not write WordNet snapshot " + snapshot + ": " + e.getMessage());
             }
         }
+    }
 
-        for(String pos : poses) {
-            Path dataFile = wordNetDict.resolve("data." + shortLongPos.get(pos));
+    /**
+     * Load morphological exceptions for replacement table
+     */
+    private void readMorphExceptions(Path wordNetDict) throws IOException {
+        morphExceptionReplacementsByPos = new HashMap<>();
+        for(String pos : WordNetGraph.POSES) {
+            Map<String, String> replacements = new HashMap<>();
+            Path dataFile = wordNetDict.resolve(shortLongPos.get(pos) + ".exc");
             BufferedReader reader = new BufferedReader(new FileReader(dataFile.toFile()));
             String line;
             while ((line = reader.readLine()) != null) {
-                if (line.startsWith("  ")) continue;
                 String[] fields = line.split(" ");
-                Synset thisSynset = posOffsetSynsetMap.get(pos).get(fields[0]);
-                int wordCount = Integer.parseInt(fields[3], 16);
-                // loop through all words for this synset and their sense number
-                for (int i = 4; i < 4 + wordCount * 2; i += 2) {
-                    String word = fields[i].toLowerCase();
-                    // DON'T USE THE SENSE NUMBER PROVIDED IN THE DATA FILE; USE ITS POSITION FROM THE INDEX FILE
-                    // WordNet is full of places where the sense number in data disagrees with the order in index.
-                    // It's not entirely clear that it should be done this way, but the GUI does it this way...
-                    String wordPos = pos;
-                    if(word.contains("(")) {
-                        int posStart = word.indexOf("(");
-                        int posEnd = word.indexOf(")");
-                        wordPos = word.substring(posStart + 1, posEnd);
-                        word = word.substring(0, posStart);
-                    }
-                    if(wordPos.equals("ip") || wordPos.equals("p")) wordPos = "a";
-                    if(!lemmasByPos.containsKey(wordPos)) {
-                        System.out.println("Unknown part of speech " + wordPos + " on this line: " + line);
-                    } else {
-                        if (lemmasByPos.get(wordPos).containsKey(word)) {
-                            for(Sense sense : lemmasByPos.get(wordPos).get(word).senses) {
-                                if(sense.synset == thisSynset) {
-                                    thisSynset.senses.add(sense);
-                                    break;
-                                }
-                            }
-                        } else {
-                            System.out.println("Word " + word + " not found for pos " + wordPos);
-                        }
-                    }
-                }
+                replacements.put(fields[0], fields[1]);
             }
+            morphExceptionReplacementsByPos.put(pos, replacements);
         }
+    }
 
-        // get relations (pointers)
-        for(String pos : poses) {
-            Path dataFile = wordNetDict.resolve("data." + shortLongPos.get(pos));
-            BufferedReader reader = new BufferedReader(new FileReader(dataFile.toFile()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                if (line.startsWith("  ")) continue;
-                String[] fields = line.split(" ");
-                Synset thisSynset = posOffsetSynsetMap.get(pos).get(fields[0]);
-                int wordCount = Integer.parseInt(fields[3], 16);
-                int start = 5 + 2*wordCount;
-                int pCount = Integer.parseInt(fields[start-1]);
-                int end = start + 4 * pCount;
-                for(int i = start; i < end; i += 4) {
-                    String pointerType = fields[i];
-                    String pointerOffset = fields[i+1];
-                    String pointerPos = fields[i+2];
-                    // "s" for satellite adjective; simplifying to just "a"
-                    if(pointerPos.equals("s")) pointerPos = "a";
-                    String pointerWordFromTo = fields[i+3];
-                    // synset pointer (semantic; not dependent on word)
-                    if(pointerWordFromTo.equals("0000")) {
-                        thisSynset.pointers.add(new SemPointer(posOffsetSynsetMap.get(pointerPos).get(pointerOffset), pointerType));
-                    } else {
-                        // AABB
-                        // this pointer's "from" is the AAth sense in this synset
-                        // this pointer's "to" is the BBth sense in the synset linked by the offset
-                        int fromSenseInt = Integer.parseInt(pointerWordFromTo.substring(0,2), 16) - 1;
-                        int toSenseInt = Integer.parseInt(pointerWordFromTo.substring(2,4), 16) - 1;
-                        Sense fromSense = thisSynset.senses.get(fromSenseInt);
-                        Synset toSynset = posOffsetSynsetMap.get(pointerPos).get(pointerOffset);
-                        Sense toSense = toSynset.senses.get(toSenseInt);
-                        fromSense.pointers.add(new LexPointer(toSense, pointerType));
-                    }
+    /**
+     * @return a CRC-32 checksum of all database files
+     */
+    private static long checksum(Path wordNetDict) throws IOException {
+        List<String> files = new ArrayList<>();
+        for(String pos : WordNetGraph.POSES) {
+            files.add("data." + shortLongPos.get(pos));
+            files.add("index." + shortLongPos.get(pos));
+            files.add(shortLongPos.get(pos) + ".exc");
+        }
+        files.add("index.sense");
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[1 << 16];
+        for(String file : files) {
+            try (InputStream in = new FileInputStream(wordNetDict.resolve(file).toFile())) {
+                int n;
+                while((n = in.read(buffer)) > 0) {
+                    crc.update(buffer, 0, n);
                 }
-
             }
         }
+        return crc.getValue();
+    }
 
-        // read senses.index to get the counts (contains almost all information from cntlist)
-        {
-            // WordNet sense_keys have an integer that corresponds to PoS for some reason
-            Map<String, String> intPosMap = new HashMap<>();
-            intPosMap.put("1", "n");
-            intPosMap.put("2", "v");
-            intPosMap.put("3", "a");
-            intPosMap.put("4", "r");
-            intPosMap.put("5", "a");        // this is the category for 'adjective satellites' which I don't distinguish
-
-            BufferedReader reader = new BufferedReader(new FileReader(wordNetDict.resolve("index.sense").toFile()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] fields = line.split(" ");
-                int count = Integer.parseInt(fields[3]);
-                if (count == 0) continue;
-                int senseNum = Integer.parseInt(fields[2]) - 1;
-//            String offset = fields[1];            // not needed!
-                String senseKey = fields[0];
-                String[] senseKeyFields = senseKey.split("[%:]");
-                String lemmaForm = senseKeyFields[0];
-                String pos = intPosMap.get(senseKeyFields[1]);
-                Lemma relevantLemma = lemmasByPos.get(pos).get(lemmaForm);
-                relevantLemma.senses.get(senseNum).frequency = count;
-            }
-
+    /**
+     * Save the graph, the morphological exceptions and the sense relation index. All numbers are big-endian
+     * The snapshot is written to a temporary file and then renamed, so a run that is interrupted never leaves a partial one
+     * @param file the file to write
+     * @param checksum checksum of the database files
+     * @throws IOException
+     */
+    private void writeSnapshot(File file, long checksum) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            writeSnapshotData(temp, checksum);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
 
-            // this set might be useful later
-            allLemmas = new HashSet<>();
-            for (Map<String, Lemma> lemmasOfSinglePos : lemmasByPos.values()) {
-                allLemmas.addAll(lemmasOfSinglePos.values());
+    private void writeSnapshotData(File file, long checksum) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(checksum);
+            graph.write(out);
+            for(String pos : WordNetGraph.POSES) {
+                Map<String, String> replacements = morphExceptionReplacementsByPos.get(pos);
+                out.writeInt(replacements.size());
+                for(Map.Entry<String, String> replacement : replacements.entrySet()) {
+                    WordNetGraph.writeString(out, replacement.getKey());
+                    WordNetGraph.writeString(out, replacement.getValue());
+                }
             }
+            senseRelations.write(out);
         }
+    }
 
-        // Load morphological exceptions for replacement table
-
-        morphExceptionReplacementsByPos = new HashMap<>();
-        for(String pos : poses) {
-            Map<String, String> replacements = new HashMap<>();
-            Path dataFile = wordNetDict.resolve(shortLongPos.get(pos) + ".exc");
-            BufferedReader reader = new BufferedReader(new FileReader(dataFile.toFile()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] fields = line.split(" ");
-                replacements.put(fields[0], fields[1]);
+    /**
+     * Load the database from a snapshot written by writeSnapshot
+     * @return false if the snapshot was taken of different database files
+     */
+    private boolean readSnapshot(File file, long checksum) throws IOException {
+        ByteBuffer buffer;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if(buffer.getInt() != SNAPSHOT_MAGIC) {
+                throw new IOException(file + " is not a WordNet snapshot");
             }
-            morphExceptionReplacementsByPos.put(pos, replacements);
+            if(buffer.getInt() != SNAPSHOT_VERSION || buffer.getLong() != checksum) {
+                return false;
+            }
+            graph = WordNetGraph.read(buffer);
+            morphExceptionReplacementsByPos = new HashMap<>();
+            for(String pos : WordNetGraph.POSES) {
+                Map<String, String> replacements = new HashMap<>();
+                int n = buffer.getInt();
+                for(int i=0; i<n; i++) {
+                    replacements.put(WordNetGraph.readString(buffer), WordNetGraph.readString(buffer));
+                }
+                morphExceptionReplacementsByPos.put(pos, replacements);
+            }
+            senseRelations = SenseRelationIndex.read(buffer);
+        } catch(BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException | NegativeArraySizeException e) {
+            // counts that run past the end of the file (e.g. a snapshot cut short by a full disk)
+            throw new IOException(file + " is truncated or corrupt");
         }
+        return true;
     }
 
     /**
@@ -556,115 +603,126 @@ public class WordNet {
      * @return how often senses of these two words will have this relationship
      */
     public double probRelationOverSenses(String w1, String w2, @Nullable String forceRelation) {
-        double ratio = 0;
-        Set<Lemma> lemmas1 = lemmasOf(w1);
-        Set<Lemma> lemmas2 = lemmasOf(w2);
+        w1 = w1.toLowerCase();
+        w2 = w2.toLowerCase();
+        // null and the empty string are different relations (the latter matches nothing)
+        String key = w1 + '\t' + w2 + '\t' + (forceRelation == null ? "\0" : forceRelation);
+        String first = w1, second = w2;
+        return prosCache.get(key, k -> computeProbRelationOverSenses(first, second, forceRelation));
+    }
+
+    private double computeProbRelationOverSenses(String w1, String w2, @Nullable String forceRelation) {
+        int[] lemmas1 = lemmaIdsOf(w1);
+        int[] lemmas2 = lemmaIdsOf(w2);
 
         // Estimate probabilities (based on frequency) for each sense
-        Map<Sense, Double> senseProbs1 = new HashMap<>();
-        Map<Sense, Double> senseProbs2 = new HashMap<>();
         double sum1 = 0;
         double sum2 = 0;
-        for(Lemma l : lemmas1) {
-            for(Sense sense : l.senses) {
-                senseProbs1.put(sense, sense.frequency + MIN_COUNT);
-                sum1 += sense.frequency + MIN_COUNT;
+        for(int lemma : lemmas1) {
+            for(int sense=graph.senseBegin(lemma); sense<graph.senseEnd(lemma); sense++) {
+                sum1 += graph.senseFrequency(sense) + MIN_COUNT;
             }
         }
-        for(Lemma l : lemmas2) {
-            for(Sense sense : l.senses) {
-                senseProbs2.put(sense, sense.frequency + MIN_COUNT);
-                sum2 += sense.frequency + MIN_COUNT;
+        for(int lemma : lemmas2) {
+            for(int sense=graph.senseBegin(lemma); sense<graph.senseEnd(lemma); sense++) {
+                sum2 += graph.senseFrequency(sense) + MIN_COUNT;
             }
         }
 
-        for(Sense sense1 : senseProbs1.keySet()) {
-            for(Sense sense2 : senseProbs2.keySet()) {
-                searchForRelation: {
-                    /**
-                     * Relation should be found if either:
-                     *  - the lemmas of the two forms are equivalent (there's obviously a relation there)
-                     *  - the sense of each term points to any sense of the other
-                     *          (w1i -> w2 && w2j -> w1)            where w1 is lemma 1 and w1i is the i'th sense of w1
-                     *  - the sense of one or the other points to the sense of the other
-                     *          (w1i -> w2j || w2j -> w1i)
-                     */
-                    // condition 1
-                    double jointProb = senseProbs1.get(sense1) * senseProbs2.get(sense2) / sum1 / sum2;
-                    if (sense1.lemma.form.equals(sense2.lemma.form)) {
-                        ratio += jointProb;
-                        break searchForRelation;
-                    }
-
-                    // condition 2 (lex pointers only; not defined for synset pointers, which don't point to forms)
-                    for (LexPointer pointer : sense1.pointers) {
-                        if (pointer.target.lemma.form.equals(sense2.lemma.form)) {
-                            for (LexPointer pointer2 : sense2.pointers) {
-                                if (pointer2.target.lemma.form.equals(sense1.lemma.form)) {
-                                    // ADDED JUNE 2 TO FORCE THE SAME RELATION, NOT JUST ANY
-                                    if(forceRelation != null && pointer.type.equals(forceRelation) && pointer2.type.equals(forceRelation)) {
-                                        ratio += jointProb;
-                                        break searchForRelation;
-                                    }
-                                }
-                            }
-                            break;
+        // see indexSenseRelations for the relations that count
+        byte relationCode = forceRelation == null ? -1 : graph.typeCode(forceRelation);
+        long relationBit = relationCode < 0 ? 0 : 1L << relationCode;
+        double ratio = 0;
+        for(int lemma1 : lemmas1) {
+            for(int sense1=graph.senseBegin(lemma1); sense1<graph.senseEnd(lemma1); sense1++) {
+                int form1 = graph.senseForm(sense1);
+                double count1 = graph.senseFrequency(sense1) + MIN_COUNT;
+                for(int lemma2 : lemmas2) {
+                    for(int sense2=graph.senseBegin(lemma2); sense2<graph.senseEnd(lemma2); sense2++) {
+                        if(form1 == graph.senseForm(sense2)
+                                || (relationBit & senseRelations.relations(sense1, sense2)) != 0) {
+                            ratio += count1 * (graph.senseFrequency(sense2) + MIN_COUNT) / sum1 / sum2;
                         }
                     }
+                }
+            }
+        }
+        return ratio;
+    }
 
-                    // condition 3 for synset pointers
-                    for (SemPointer pointer : sense1.synset.pointers) {
-                        if (pointer.target == sense2.synset) {
-                            if(forceRelation != null && pointer.type.equals(forceRelation)) {
-                                ratio += jointProb;
-                                break searchForRelation;
-                            }
-                        }
-                    }
-                    for (SemPointer pointer : sense2.synset.pointers) {
-                        if (pointer.target == sense1.synset) {
-                            if(forceRelation != null && pointer.type.equals(forceRelation)) {
-                                ratio += jointProb;
-                                break searchForRelation;
-                            }
-                        }
-                    }
-                    // condition 3 for lexical pointers
-                    for (LexPointer pointer : sense1.pointers) {
-                        if(pointer.target == sense2) {
-                            if(forceRelation != null && pointer.type.equals(forceRelation)) {
-                                ratio += jointProb;
-                                break searchForRelation;
+    /**
+     * Find, for every pair of senses, the relations that probRelationOverSenses counts.
+     * A relation is found between sense1 and sense2 if either:
+     *  - the sense of each term points to any sense of the other with this relation
+     *          (w1i -> w2 && w2j -> w1), judged by the first pointer from w1i to a sense of w2's form,
+     *          where w1 is lemma 1 and w1i is the i'th sense of w1
+     *  - the synset of one or the other points to the synset of the other with this relation
+     *  - the sense of one or the other points to the sense of the other with this relation
+     *          (w1i -> w2j || w2j -> w1i)
+     * (Senses with the same form are always related; that needs no index.)
+     */
+    private void indexSenseRelations() {
+        int nSenses = graph.senseCount();
+        // the senses of every synset, found from the senses (the data files might not list them all)
+        int[] synsetOffsets = new int[graph.synsetCount() + 1];
+        for(int sense=0; sense<nSenses; sense++) {
+            if(graph.senseSynset(sense) >= 0) synsetOffsets[graph.senseSynset(sense) + 1]++;
+        }
+        for(int synset=0; synset<graph.synsetCount(); synset++) {
+            synsetOffsets[synset + 1] += synsetOffsets[synset];
+        }
+        int[] synsetSenses = new int[synsetOffsets[graph.synsetCount()]];
+        int[] next = Arrays.copyOf(synsetOffsets, graph.synsetCount());
+        for(int sense=0; sense<nSenses; sense++) {
+            if(graph.senseSynset(sense) >= 0) synsetSenses[next[graph.senseSynset(sense)]++] = sense;
+        }
+
+        senseRelations = new SenseRelationIndex(nSenses);
+        // the last sense to point to each form, so that only its first pointer to the form counts
+        int[] formSeenBy = new int[graph.formCount()];
+        Arrays.fill(formSeenBy, -1);
+        for(int sense1=0; sense1<nSenses; sense1++) {
+            int form1 = graph.senseForm(sense1);
+            // the same relation in both directions between forms
+            for(int pointer=graph.lexBegin(sense1); pointer<graph.lexEnd(sense1); pointer++) {
+                int form2 = graph.senseForm(graph.lexTarget(pointer));
+                if(formSeenBy[form2] == sense1) continue;
+                formSeenBy[form2] = sense1;
+                byte type = graph.lexType(pointer);
+                for(int pos=0; pos<WordNetGraph.POSES.length; pos++) {
+                    int lemma2 = graph.lemma(pos, form2);
+                    if(lemma2 < 0) continue;
+                    for(int sense2=graph.senseBegin(lemma2); sense2<graph.senseEnd(lemma2); sense2++) {
+                        for(int pointer2=graph.lexBegin(sense2); pointer2<graph.lexEnd(sense2); pointer2++) {
+                            if(graph.senseForm(graph.lexTarget(pointer2)) == form1 && graph.lexType(pointer2) == type) {
+                                senseRelations.add(sense1, sense2, type);
+                                break;
                             }
                         }
                     }
-                    for (LexPointer pointer : sense2.pointers) {
-                        if(pointer.target == sense1) {
-                            if(forceRelation != null && pointer.type.equals(forceRelation)) {
-                                ratio += jointProb;
-                                break searchForRelation;
-                            }
-                        }
+                }
+            }
+            // one sense points to the other
+            for(int pointer=graph.lexBegin(sense1); pointer<graph.lexEnd(sense1); pointer++) {
+                senseRelations.add(sense1, graph.lexTarget(pointer), graph.lexType(pointer));
+                senseRelations.add(graph.lexTarget(pointer), sense1, graph.lexType(pointer));
+            }
+        }
+        // one synset points to the other
+        for(int synset=0; synset<graph.synsetCount(); synset++) {
+            for(int pointer=graph.semBegin(synset); pointer<graph.semEnd(synset); pointer++) {
+                int target = graph.semTarget(pointer);
+                if(target < 0) continue;
+                byte type = graph.semType(pointer);
+                for(int i=synsetOffsets[synset]; i<synsetOffsets[synset + 1]; i++) {
+                    for(int j=synsetOffsets[target]; j<synsetOffsets[target + 1]; j++) {
+                        senseRelations.add(synsetSenses[i], synsetSenses[j], type);
+                        senseRelations.add(synsetSenses[j], synsetSenses[i], type);
                     }
-
-                    // this seems like too strong a criterion; was using it before
-//                    for (SemPointer pointer : sense1.synset.pointers) {
-//                        if (pointer.target == sense2.synset) {
-//                            for (SemPointer pointer2 : sense2.synset.pointers) {
-//                                if (pointer2.target == sense1.synset) {
-//                                    ratio += jointProb;
-//                                    break searchForRelation;
-//                                }
-//                            }
-//                            break;          // don't try the 2->1 pointers again if they failed
-//                        }
-//                    }
-
                 }
             }
         }
-
-        return ratio;
+        senseRelations.build();
     }
 
     /**
@@ -673,41 +731,151 @@ public class WordNet {
      * @return a Set of all Lemmas, of all possible parts of speech, that this word could refer to
      */
     public Set<Lemma> lemmasOf(String word) {
-        word = word.toLowerCase();
-        Set<Lemma> foundLemmas = new HashSet<>();
+        Set<Lemma> lemmas = new HashSet<>();
+        for(int lemma : lemmaIdsOf(word)) {
+            lemmas.add(new Lemma(lemma));
+        }
+        return lemmas;
+    }
+
+    /**
+     * @return the ids of the lemmas in lemmasOf(word)
+     */
+    private int[] lemmaIdsOf(String word) {
+        return lemmaCache.get(word.toLowerCase(), this::computeLemmaIdsOf);
+    }
+
+    private int[] computeLemmaIdsOf(String word) {
+        Set<Integer> foundLemmas = new LinkedHashSet<>();
         for(String pos : shortLongPos.keySet()) {
             // see if this word unaltered is in the dictionary
-            if(lemmasByPos.get(pos).containsKey(word)) foundLemmas.add(lemmasByPos.get(pos).get(word));
+            foundLemmas.add(graph.lemma(pos, word));
             // see if this word minus known regular suffixes is in the dictionary
             for(String suffix : posMorphReplacements.get(pos).keySet()) {
                 if(word.endsWith(suffix)) {
                     String subbed = word.substring(0, word.length() - suffix.length()) + posMorphReplacements.get(pos).get(suffix);
-                    if(lemmasByPos.get(pos).containsKey(subbed)) {
-                        foundLemmas.add(lemmasByPos.get(pos).get(subbed));
-                    }
+                    foundLemmas.add(graph.lemma(pos, subbed));
                 }
             }
             // see if this word is an irregular form
             if(morphExceptionReplacementsByPos.get(pos).containsKey(word)) {
                 String baseForm = morphExceptionReplacementsByPos.get(pos).get(word);
-                if(lemmasByPos.get(pos).containsKey(baseForm)) {
-                    foundLemmas.add(lemmasByPos.get(pos).get(baseForm));
-                }
+                foundLemmas.add(graph.lemma(pos, baseForm));
             }
         }
-        return foundLemmas;
+        // words not in the dictionary
+        foundLemmas.remove(-1);
+        int[] ids = new int[foundLemmas.size()];
+        int n = 0;
+        for(int lemma : foundLemmas) {
+            ids[n++] = lemma;
+        }
+        return ids;
     }
 
     public double getEntropyOverLemmas(String word) {
+        return entropyCache.get(word.toLowerCase(), this::computeEntropyOverLemmas);
+    }
+
+    private double computeEntropyOverLemmas(String word) {
         List<Double> freqsList = new ArrayList<>();
-        for(Lemma lemma : lemmasOf(word)) {
-            for(Sense sense : lemma.senses) {
-                freqsList.add(sense.frequency + MIN_COUNT);
+        for(int lemma : lemmaIdsOf(word)) {
+            for(int sense=graph.senseBegin(lemma); sense<graph.senseEnd(lemma); sense++) {
+                freqsList.add(graph.senseFrequency(sense) + MIN_COUNT);
             }
         }
         return entropy(freqsList);
     }
 
+    /**
+     * Replace the caches of lemmas, entropy and PRoS with empty ones of a different size
+     * @param capacity the most entries to keep in each cache (0 to turn caching off)
+     */
+    public void setCacheCapacity(int capacity) {
+        lemmaCache = new ScoreCache<>("lemma", capacity);
+        entropyCache = new ScoreCache<>("entropy", capacity);
+        prosCache = new ScoreCache<>("PRoS", capacity);
+    }
+
+    /**
+     * @return hit and miss counts of the caches, one line per cache
+     */
+    public String cacheStats() {
+        return lemmaCache + "\n" + entropyCache + "\n" + prosCache;
+    }
+
+    /**
+     * Save the cached entropy and PRoS scores, so that a later run can start with them
+     * The file is written under a temporary name and then renamed, so an interrupted save never leaves a partial one
+     * @param cacheFile the file to write
+     * @throws IOException
+     */
+    public void saveCache(String cacheFile) throws IOException {
+        File file = new File(cacheFile);
+        File temp = new File(cacheFile + ".tmp");
+        try {
+            writeCache(temp);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp.toPath());
+        }
+    }
+
+    private void writeCache(File cacheFile) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile), 1 << 16))) {
+            out.writeInt(CACHE_FILE_MAGIC);
+            // scores are only valid for the same database files
+            out.writeLong(checksum);
+            out.writeDouble(MIN_COUNT);
+            for(ScoreCache<String, Double> cache : Arrays.asList(entropyCache, prosCache)) {
+                List<String> keys = new ArrayList<>();
+                List<Double> values = new ArrayList<>();
+                cache.forEach((key, value) -> {
+                    keys.add(key);
+                    values.add(value);
+                });
+                out.writeInt(keys.size());
+                for(int i=0; i<keys.size(); i++) {
+                    out.writeUTF(keys.get(i));
+                    out.writeDouble(values.get(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fill the caches with scores saved by saveCache
+     * Files saved with a different WordNet are ignored, as are truncated or corrupt ones (with a warning)
+     * @param cacheFile the file to read
+     * @return true if the scores were loaded
+     * @throws IOException if the file can't be opened, or isn't a score cache at all
+     */
+    public boolean loadCache(String cacheFile) throws IOException {
+        Map<String, Double> entropies = new HashMap<>();
+        Map<String, Double> pros = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16))) {
+            if(in.readInt() != CACHE_FILE_MAGIC) {
+                throw new IOException(cacheFile + " is not a WordNet score cache");
+            }
+            if(in.readLong() != checksum || in.readDouble() != MIN_COUNT) {
+                return false;
+            }
+            // read everything before filling the caches, so that a bad file adds nothing
+            for(Map<String, Double> scores : Arrays.asList(entropies, pros)) {
+                int n = in.readInt();
+                for(int i=0; i<n; i++) {
+                    scores.put(in.readUTF(), in.readDouble());
+                }
+            }
+        } catch(EOFException | UTFDataFormatException e) {
+            LOGGER.warning("Ignoring truncated or corrupt score cache " + cacheFile + ": " + e);
+            return false;
+        }
+        entropies.forEach(entropyCache::put);
+        pros.forEach(prosCache::put);
+        return true;
+    }
+
     private double entropy(Collection<Double> frequencies) {
         double total = 0;
         double entropy = 0;
@@ -0,0 +1,621 @@
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The WordNet database as dense int ids and flat arrays
+ * Lemmas, senses and synsets are numbered from 0. The senses of a lemma have consecutive ids (in sense number order);
+ *      the senses of a synset and the pointers of a sense or synset are stored in compressed sparse rows:
+ *      row i of a table is the range offsets[i] .. offsets[i+1] of its value arrays. Pointer types are byte codes
+ */
+public class WordNetGraph {
+
+    // parts of speech, in the order of their codes
+    public static final String[] POSES = {"n", "a", "v", "r"};
+
+    private static final Map<String, String> shortLongPos = new HashMap<>();
+    // WordNet sense_keys have an integer that corresponds to PoS for some reason
+    private static final Map<String, String> intPosMap = new HashMap<>();
+    static {
+        shortLongPos.put("a", "adj");
+        shortLongPos.put("n", "noun");
+        shortLongPos.put("r", "adv");
+        shortLongPos.put("v", "verb");
+        intPosMap.put("1", "n");
+        intPosMap.put("2", "v");
+        intPosMap.put("3", "a");
+        intPosMap.put("4", "r");
+        intPosMap.put("5", "a");        // this is the category for 'adjective satellites' which I don't distinguish
+    }
+
+    // distinct lemma forms, and the lemma of each form for each part of speech (-1 where none)
+    private final PhraseIndex forms;
+    private final int[] formLemmas;
+
+    private final int[] lemmaForms;
+    private final byte[] lemmaPoses;
+    private final int[] lemmaSenses;
+
+    private final int[] senseLemmas;
+    private final int[] senseSynsets;
+    private final int[] senseFrequencies;
+    private final int[] lexOffsets;
+    private final int[] lexTargets;
+    private final byte[] lexTypes;
+
+    private final byte[] synsetPoses;
+    private final int[] synsetSenseOffsets;
+    private final int[] synsetSenses;
+    private final int[] semOffsets;
+    private final int[] semTargets;
+    private final byte[] semTypes;
+
+    private final String[] types;
+    private final Map<String, Byte> typeCodes = new HashMap<>();
+
+    private WordNetGraph(PhraseIndex forms, int[] lemmaForms, byte[] lemmaPoses, int[] lemmaSenses,
+                         int[] senseSynsets, int[] senseFrequencies, int[] lexOffsets, int[] lexTargets, byte[] lexTypes,
+                         byte[] synsetPoses, int[] synsetSenseOffsets, int[] synsetSenses,
+                         int[] semOffsets, int[] semTargets, byte[] semTypes, String[] types) {
+        this.forms = forms;
+        this.lemmaForms = lemmaForms;
+        this.lemmaPoses = lemmaPoses;
+        this.lemmaSenses = lemmaSenses;
+        this.senseSynsets = senseSynsets;
+        this.senseFrequencies = senseFrequencies;
+        this.lexOffsets = lexOffsets;
+        this.lexTargets = lexTargets;
+        this.lexTypes = lexTypes;
+        this.synsetPoses = synsetPoses;
+        this.synsetSenseOffsets = synsetSenseOffsets;
+        this.synsetSenses = synsetSenses;
+        this.semOffsets = semOffsets;
+        this.semTargets = semTargets;
+        this.semTypes = semTypes;
+        this.types = types;
+        for(int i=0; i<types.length; i++) {
+            typeCodes.put(types[i], (byte) i);
+        }
+        senseLemmas = new int[senseSynsets.length];
+        for(int lemma=0; lemma<lemmaForms.length; lemma++) {
+            Arrays.fill(senseLemmas, lemmaSenses[lemma], lemmaSenses[lemma + 1], lemma);
+        }
+        // if a form appears twice for one part of speech, the later lemma is the one found
+        formLemmas = new int[forms.size() * POSES.length];
+        Arrays.fill(formLemmas, -1);
+        for(int lemma=0; lemma<lemmaForms.length; lemma++) {
+            formLemmas[lemmaForms[lemma] * POSES.length + lemmaPoses[lemma]] = lemma;
+        }
+    }
+
+    /**
+     * @return the code of a part of speech, or -1 if it isn't one
+     */
+    public static int posCode(String pos) {
+        for(int p=0; p<POSES.length; p++) {
+            if(POSES[p].equals(pos)) return p;
+        }
+        return -1;
+    }
+
+    public int lemmaCount() {
+        return lemmaForms.length;
+    }
+
+    public int senseCount() {
+        return senseSynsets.length;
+    }
+
+    public int synsetCount() {
+        return synsetPoses.length;
+    }
+
+    public int formCount() {
+        return forms.size();
+    }
+
+    /**
+     * @return the id of a form, or -1 if no lemma has it
+     */
+    public int form(CharSequence form) {
+        return forms.indexOf(form);
+    }
+
+    public String formString(int form) {
+        return forms.keyAt(form);
+    }
+
+    /**
+     * @return the lemma with a form and part of speech, or -1 if there is none
+     */
+    public int lemma(int posCode, int form) {
+        return form < 0 || posCode < 0 ? -1 : formLemmas[form * POSES.length + posCode];
+    }
+
+    public int lemma(String pos, CharSequence form) {
+        return lemma(posCode(pos), form(form));
+    }
+
+    public int lemmaForm(int lemma) {
+        return lemmaForms[lemma];
+    }
+
+    public String lemmaPos(int lemma) {
+        return POSES[lemmaPoses[lemma]];
+    }
+
+    /**
+     * @return the id of the first sense of a lemma (its senses are numbered consecutively)
+     */
+    public int senseBegin(int lemma) {
+        return lemmaSenses[lemma];
+    }
+
+    public int senseEnd(int lemma) {
+        return lemmaSenses[lemma + 1];
+    }
+
+    public int senseLemma(int sense) {
+        return senseLemmas[sense];
+    }
+
+    public int senseForm(int sense) {
+        return lemmaForms[senseLemmas[sense]];
+    }
+
+    /**
+     * @return the synset of a sense, or -1 if the index named a synset missing from the data file
+     */
+    public int senseSynset(int sense) {
+        return senseSynsets[sense];
+    }
+
+    /**
+     * @return the count of a sense from WordNet's cntlist
+     */
+    public int senseFrequency(int sense) {
+        return senseFrequencies[sense];
+    }
+
+    /**
+     * Lexical pointers of a sense are lexBegin(sense) .. lexEnd(sense)
+     */
+    public int lexBegin(int sense) {
+        return lexOffsets[sense];
+    }
+
+    public int lexEnd(int sense) {
+        return lexOffsets[sense + 1];
+    }
+
+    public int lexTarget(int pointer) {
+        return lexTargets[pointer];
+    }
+
+    public byte lexType(int pointer) {
+        return lexTypes[pointer];
+    }
+
+    public String synsetPos(int synset) {
+        return POSES[synsetPoses[synset]];
+    }
+
+    /**
+     * Senses listed for a synset in its data file are synsetSense(synsetSenseBegin(synset)) .. synsetSense(synsetSenseEnd(synset) - 1)
+     */
+    public int synsetSenseBegin(int synset) {
+        return synsetSenseOffsets[synset];
+    }
+
+    public int synsetSenseEnd(int synset) {
+        return synsetSenseOffsets[synset + 1];
+    }
+
+    public int synsetSense(int i) {
+        return synsetSenses[i];
+    }
+
+    /**
+     * Semantic (synset) pointers of a synset are semBegin(synset) .. semEnd(synset)
+     */
+    public int semBegin(int synset) {
+        return semOffsets[synset];
+    }
+
+    public int semEnd(int synset) {
+        return semOffsets[synset + 1];
+    }
+
+    /**
+     * @return the synset pointed to, or -1 if it was missing from the data file
+     */
+    public int semTarget(int pointer) {
+        return semTargets[pointer];
+    }
+
+    public byte semType(int pointer) {
+        return semTypes[pointer];
+    }
+
+    public int typeCount() {
+        return types.length;
+    }
+
+    /**
+     * @return the code of a pointer type, or -1 if no pointer has that type
+     */
+    public byte typeCode(String type) {
+        Byte code = typeCodes.get(type);
+        return code == null ? -1 : code;
+    }
+
+    public String typeName(byte code) {
+        return types[code];
+    }
+
+    /**
+     * Parse the data.*, index.* and index.sense files of a WordNet database
+     * @param wordNetDict WordNet's dict directory
+     * @return the graph
+     * @throws IOException
+     */
+    public static WordNetGraph parse(Path wordNetDict) throws IOException {
+        // Load up all the synset offsets from all parts of speech before doing anything else
+        List<Map<String, Integer>> synsetsByOffset = new ArrayList<>();
+        IntArray synsetPoses = new IntArray();
+        for(int p=0; p<POSES.length; p++) {
+            Map<String, Integer> synsets = new HashMap<>();
+            try (BufferedReader reader = new BufferedReader(new FileReader(wordNetDict.resolve("data." + shortLongPos.get(POSES[p])).toFile()))) {
+                String line;
+                while((line = reader.readLine()) != null) {
+                    if (line.startsWith("  ")) continue;
+                    synsets.put(line.substring(0, line.indexOf(' ')), synsetPoses.size());
+                    synsetPoses.add(p);
+                }
+            }
+            synsetsByOffset.add(synsets);
+        }
+
+        // Find all lemmas from the index files, then all sense information from the data files
+        PhraseIndex forms = new PhraseIndex();
+        IntArray lemmaForms = new IntArray();
+        IntArray lemmaPoses = new IntArray();
+        IntArray lemmaSenses = new IntArray();
+        IntArray senseSynsets = new IntArray();
+        lemmaSenses.add(0);
+        for(int p=0; p<POSES.length; p++) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(wordNetDict.resolve("index." + shortLongPos.get(POSES[p])).toFile()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("  ")) continue;
+                    String[] fields = line.split(" ");
+                    int form = forms.add(fields[0]);
+                    lemmaForms.add(form >= 0 ? form : forms.indexOf(fields[0]));
+                    lemmaPoses.add(p);
+                    int pointerTypes = Integer.parseInt(fields[3]);
+                    for (int i = pointerTypes + 6; i < fields.length; i++) {
+                        Integer synset = synsetsByOffset.get(p).get(fields[i]);
+                        senseSynsets.add(synset == null ? -1 : synset);
+                    }
+                    lemmaSenses.add(senseSynsets.size());
+                }
+            }
+        }
+        int[] formLemmas = new int[forms.size() * POSES.length];
+        Arrays.fill(formLemmas, -1);
+        for(int lemma=0; lemma<lemmaForms.size(); lemma++) {
+            formLemmas[lemmaForms.get(lemma) * POSES.length + lemmaPoses.get(lemma)] = lemma;
+        }
+
+        IntArray synsetSenseOffsets = new IntArray();
+        IntArray synsetSenses = new IntArray();
+        synsetSenseOffsets.add(0);
+        for(int p=0; p<POSES.length; p++) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(wordNetDict.resolve("data." + shortLongPos.get(POSES[p])).toFile()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("  ")) continue;
+                    String[] fields = line.split(" ");
+                    int thisSynset = synsetSenseOffsets.size() - 1;
+                    int wordCount = Integer.parseInt(fields[3], 16);
+                    // loop through all words for this synset and their sense number
+                    for (int i = 4; i < 4 + wordCount * 2; i += 2) {
+                        String word = fields[i].toLowerCase();
+                        // DON'T USE THE SENSE NUMBER PROVIDED IN THE DATA FILE; USE ITS POSITION FROM THE INDEX FILE
+                        // WordNet is full of places where the sense number in data disagrees with the order in index.
+                        // It's not entirely clear that it should be done this way, but the GUI does it this way...
+                        String wordPos = POSES[p];
+                        if(word.contains("(")) {
+                            int posStart = word.indexOf("(");
+                            int posEnd = word.indexOf(")");
+                            wordPos = word.substring(posStart + 1, posEnd);
+                            word = word.substring(0, posStart);
+                        }
+                        if(wordPos.equals("ip") || wordPos.equals("p")) wordPos = "a";
+                        int posCode = posCode(wordPos);
+                        if(posCode < 0) {
+                            System.out.println("Unknown part of speech " + wordPos + " on this line: " + line);
+                            continue;
+                        }
+                        int form = forms.indexOf(word);
+                        int lemma = form < 0 ? -1 : formLemmas[form * POSES.length + posCode];
+                        if (lemma >= 0) {
+                            for(int sense = lemmaSenses.get(lemma); sense < lemmaSenses.get(lemma + 1); sense++) {
+                                if(senseSynsets.get(sense) == thisSynset) {
+                                    synsetSenses.add(sense);
+                                    break;
+                                }
+                            }
+                        } else {
+                            System.out.println("Word " + word + " not found for pos " + wordPos);
+                        }
+                    }
+                    synsetSenseOffsets.add(synsetSenses.size());
+                }
+            }
+        }
+
+        // get relations (pointers)
+        Map<String, Byte> typeCodes = new HashMap<>();
+        List<String> types = new ArrayList<>();
+        IntArray semOffsets = new IntArray();
+        IntArray semTargets = new IntArray();
+        IntArray semTypes = new IntArray();
+        IntArray lexSources = new IntArray();
+        IntArray lexTargets = new IntArray();
+        IntArray lexTypes = new IntArray();
+        semOffsets.add(0);
+        for(int p=0; p<POSES.length; p++) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(wordNetDict.resolve("data." + shortLongPos.get(POSES[p])).toFile()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith("  ")) continue;
+                    String[] fields = line.split(" ");
+                    int thisSynset = semOffsets.size() - 1;
+                    int wordCount = Integer.parseInt(fields[3], 16);
+                    int start = 5 + 2*wordCount;
+                    int pCount = Integer.parseInt(fields[start-1]);
+                    int end = start + 4 * pCount;
+                    for(int i = start; i < end; i += 4) {
+                        String pointerType = fields[i];
+                        Byte type = typeCodes.get(pointerType);
+                        if(type == null) {
+                            if(types.size() == Byte.MAX_VALUE) throw new IOException("Too many pointer types");
+                            type = (byte) types.size();
+                            typeCodes.put(pointerType, type);
+                            types.add(pointerType);
+                        }
+                        String pointerOffset = fields[i+1];
+                        String pointerPos = fields[i+2];
+                        // "s" for satellite adjective; simplifying to just "a"
+                        if(pointerPos.equals("s")) pointerPos = "a";
+                        Integer target = synsetsByOffset.get(posCode(pointerPos)).get(pointerOffset);
+                        String pointerWordFromTo = fields[i+3];
+                        // synset pointer (semantic; not dependent on word)
+                        if(pointerWordFromTo.equals("0000")) {
+                            semTargets.add(target == null ? -1 : target);
+                            semTypes.add(type);
+                        } else {
+                            // AABB
+                            // this pointer's "from" is the AAth sense in this synset
+                            // this pointer's "to" is the BBth sense in the synset linked by the offset
+                            int fromSenseInt = Integer.parseInt(pointerWordFromTo.substring(0,2), 16) - 1;
+                            int toSenseInt = Integer.parseInt(pointerWordFromTo.substring(2,4), 16) - 1;
+                            lexSources.add(synsetSense(synsetSenseOffsets, synsetSenses, thisSynset, fromSenseInt, line));
+                            lexTargets.add(synsetSense(synsetSenseOffsets, synsetSenses, target, toSenseInt, line));
+                            lexTypes.add(type);
+                        }
+                    }
+                    semOffsets.add(semTargets.size());
+                }
+            }
+        }
+
+        // lexical pointers by source sense, each sense's in the order they were read
+        int nSenses = senseSynsets.size();
+        int[] lexOffsets = new int[nSenses + 1];
+        for(int i=0; i<lexSources.size(); i++) {
+            lexOffsets[lexSources.get(i) + 1]++;
+        }
+        for(int s=0; s<nSenses; s++) {
+            lexOffsets[s + 1] += lexOffsets[s];
+        }
+        int[] sortedTargets = new int[lexSources.size()];
+        byte[] sortedTypes = new byte[lexSources.size()];
+        int[] next = Arrays.copyOf(lexOffsets, nSenses);
+        for(int i=0; i<lexSources.size(); i++) {
+            int j = next[lexSources.get(i)]++;
+            sortedTargets[j] = lexTargets.get(i);
+            sortedTypes[j] = (byte) lexTypes.get(i);
+        }
+
+        // read senses.index to get the counts (contains almost all information from cntlist)
+        int[] senseFrequencies = new int[nSenses];
+        try (BufferedReader reader = new BufferedReader(new FileReader(wordNetDict.resolve("index.sense").toFile()))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(" ");
+                int count = Integer.parseInt(fields[3]);
+                if (count == 0) continue;
+                int senseNum = Integer.parseInt(fields[2]) - 1;
+                String senseKey = fields[0];
+                String[] senseKeyFields = senseKey.split("[%:]");
+                int form = forms.indexOf(senseKeyFields[0]);
+                int lemma = form < 0 ? -1 : formLemmas[form * POSES.length + posCode(intPosMap.get(senseKeyFields[1]))];
+                if(lemma < 0 || senseNum >= lemmaSenses.get(lemma + 1) - lemmaSenses.get(lemma)) {
+                    throw new IOException("index.sense names a sense missing from the index files: " + line);
+                }
+                senseFrequencies[lemmaSenses.get(lemma) + senseNum] = count;
+            }
+        }
+
+        byte[] lemmaPosBytes = new byte[lemmaPoses.size()];
+        for(int i=0; i<lemmaPosBytes.length; i++) {
+            lemmaPosBytes[i] = (byte) lemmaPoses.get(i);
+        }
+        byte[] synsetPosBytes = new byte[synsetPoses.size()];
+        for(int i=0; i<synsetPosBytes.length; i++) {
+            synsetPosBytes[i] = (byte) synsetPoses.get(i);
+        }
+        byte[] semTypeBytes = new byte[semTypes.size()];
+        for(int i=0; i<semTypeBytes.length; i++) {
+            semTypeBytes[i] = (byte) semTypes.get(i);
+        }
+        return new WordNetGraph(forms, lemmaForms.toArray(), lemmaPosBytes, lemmaSenses.toArray(),
+                senseSynsets.toArray(), senseFrequencies, lexOffsets, sortedTargets, sortedTypes,
+                synsetPosBytes, synsetSenseOffsets.toArray(), synsetSenses.toArray(),
+                semOffsets.toArray(), semTargets.toArray(), semTypeBytes, types.toArray(new String[types.size()]));
+    }
+
+    /**
+     * @return the i'th sense listed for a synset in its data file
+     */
+    private static int synsetSense(IntArray synsetSenseOffsets, IntArray synsetSenses, Integer synset, int i, String line) throws IOException {
+        if(synset == null || synset + 1 >= synsetSenseOffsets.size()
+                || i >= synsetSenseOffsets.get(synset + 1) - synsetSenseOffsets.get(synset)) {
+            throw new IOException("Pointer to or from a word missing from its synset on this line: " + line);
+        }
+        return synsetSenses.get(synsetSenseOffsets.get(synset) + i);
+    }
+
+    /**
+     * Write the graph (big-endian)
+     */
+    public void write(DataOutputStream out) throws IOException {
+        int nForms = forms.size();
+        out.writeInt(nForms);
+        out.writeInt(lemmaForms.length);
+        out.writeInt(senseSynsets.length);
+        out.writeInt(synsetPoses.length);
+        out.writeInt(lexTargets.length);
+        out.writeInt(semTargets.length);
+        out.writeInt(synsetSenses.length);
+        out.writeInt(types.length);
+        for(String type : types) {
+            writeString(out, type);
+        }
+        // forms are written with the tables of their index, so it needn't be rebuilt
+        byte[][] formBytes = new byte[nForms][];
+        int[] formOffsets = new int[nForms + 1];
+        for(int i=0; i<nForms; i++) {
+            formBytes[i] = forms.keyAt(i).getBytes(StandardCharsets.UTF_8);
+            formOffsets[i + 1] = formOffsets[i] + formBytes[i].length;
+        }
+        writeInts(out, formOffsets);
+        for(byte[] bytes : formBytes) {
+            out.write(bytes);
+        }
+        for(int i=0; i<nForms; i++) {
+            out.writeInt(forms.hashAt(i));
+        }
+        out.writeInt(forms.slots().length);
+        writeInts(out, forms.slots());
+        writeInts(out, lemmaForms);
+        out.write(lemmaPoses);
+        writeInts(out, lemmaSenses);
+        writeInts(out, senseSynsets);
+        writeInts(out, senseFrequencies);
+        writeInts(out, lexOffsets);
+        writeInts(out, lexTargets);
+        out.write(lexTypes);
+        out.write(synsetPoses);
+        writeInts(out, synsetSenseOffsets);
+        writeInts(out, synsetSenses);
+        writeInts(out, semOffsets);
+        writeInts(out, semTargets);
+        out.write(semTypes);
+    }
+
+    /**
+     * Read a graph written by write(), leaving the buffer positioned after it
+     */
+    public static WordNetGraph read(ByteBuffer buffer) {
+        int nForms = buffer.getInt();
+        int nLemmas = buffer.getInt();
+        int nSenses = buffer.getInt();
+        int nSynsets = buffer.getInt();
+        int nLex = buffer.getInt();
+        int nSem = buffer.getInt();
+        int nSynsetSenses = buffer.getInt();
+        String[] types = new String[buffer.getInt()];
+        for(int i=0; i<types.length; i++) {
+            types[i] = readString(buffer);
+        }
+        int[] formOffsets = readInts(buffer, nForms + 1);
+        byte[] formBytes = readBytes(buffer, formOffsets[nForms]);
+        String[] keys = new String[Math.max(16, nForms)];
+        for(int i=0; i<nForms; i++) {
+            keys[i] = new String(formBytes, formOffsets[i], formOffsets[i + 1] - formOffsets[i], StandardCharsets.UTF_8);
+        }
+        int[] hashes = Arrays.copyOf(readInts(buffer, nForms), keys.length);
+        int[] slots = readInts(buffer, buffer.getInt());
+        PhraseIndex forms = new PhraseIndex(keys, hashes, slots, nForms);
+        return new WordNetGraph(forms, readInts(buffer, nLemmas), readBytes(buffer, nLemmas), readInts(buffer, nLemmas + 1),
+                readInts(buffer, nSenses), readInts(buffer, nSenses), readInts(buffer, nSenses + 1), readInts(buffer, nLex), readBytes(buffer, nLex),
+                readBytes(buffer, nSynsets), readInts(buffer, nSynsets + 1), readInts(buffer, nSynsetSenses),
+                readInts(buffer, nSynsets + 1), readInts(buffer, nSem), readBytes(buffer, nSem), types);
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(ByteBuffer buffer) {
+        return new String(readBytes(buffer, buffer.getInt()), StandardCharsets.UTF_8);
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for(int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buffer, int n) {
+        int[] values = new int[n];
+        buffer.asIntBuffer().get(values);
+        buffer.position(buffer.position() + 4 * n);
+        return values;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer, int n) {
+        byte[] values = new byte[n];
+        buffer.get(values);
+        return values;
+    }
+
+    /**
+     * A growable array of ints, for building the tables
+     */
+    private static class IntArray {
+        private int[] values = new int[1024];
+        private int size = 0;
+
+        void add(int value) {
+            if(size == values.length) values = Arrays.copyOf(values, 2 * size);
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}